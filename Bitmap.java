@@ -1,46 +1,97 @@
 import java.util.ArrayList;
 import java.util.BitSet;
 import java.util.List;
-import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
 
+/*
+ * Which pieces a peer has. Files can have tens of millions of pieces, so nothing here walks the pieces one by one or
+ * copies the whole set on a hot path: the number of pieces held is counted as bits are set, and lookups jump between
+ * runs with nextSetBit/nextClearBit, which skip 64 pieces at a time.
+ */
 public class Bitmap {
     private final BitSet bitfield;
     private final int numPieces;
+    // The file is complete once the first numSourcePieces pieces are held. With erasure coding the pieces after them
+    // are repair pieces, which a complete peer does not need.
+    private final int numSourcePieces;
+    private int numPiecesHeld;
+    private int numSourcePiecesHeld;
 
     public Bitmap(int numPieces, boolean hasCompleteFile) {
+        this(numPieces, numPieces, hasCompleteFile);
+    }
+
+    public Bitmap(int numPieces, int numSourcePieces, boolean hasCompleteFile) {
         this.numPieces = numPieces;
+        this.numSourcePieces = numSourcePieces;
         this.bitfield = new BitSet(numPieces);
 
         // If the peer starts with the full file, mark all pieces as available
         if (hasCompleteFile) {
             bitfield.set(0, numPieces);
+            numPiecesHeld = numPieces;
+            numSourcePiecesHeld = numSourcePieces;
         }
     }
 
     public Bitmap(byte[] data, int numPieces) {
+        this(data, numPieces, numPieces);
+    }
+
+    public Bitmap(byte[] data, int numPieces, int numSourcePieces) {
         this.numPieces = numPieces;
+        this.numSourcePieces = numSourcePieces;
         bitfield = BitSet.valueOf(data);
+        // Spare bits at the end of the last byte are not pieces
+        if (bitfield.length() > numPieces) {
+            bitfield.clear(numPieces, bitfield.length());
+        }
+        numPiecesHeld = bitfield.cardinality();
+        numSourcePiecesHeld = bitfield.get(0, numSourcePieces).cardinality();
     }
 
-    public boolean hasAllPieces() {
-        return (bitfield.cardinality() == numPieces);
+    // Whether the file is complete
+    public synchronized boolean hasAllPieces() {
+        return numSourcePiecesHeld == numSourcePieces;
     }
 
-    public synchronized boolean containsInterestedPieces(Bitmap bitmap) {
-        BitSet bitset = (BitSet) bitmap.getBitset().clone();
+    // Whether every piece is held, repair pieces included
+    public synchronized boolean hasEveryPiece() {
+        return numPiecesHeld == numPieces;
+    }
 
-        // Remove bits from current bitfield, checking if the incoming bitmap contains set bits that are not present in
-        // my bitmap
-        bitset.andNot(bitfield);
+    public synchronized int getNumPiecesHeld() {
+        return numPiecesHeld;
+    }
 
-        return !bitset.isEmpty();
+    // Adds every piece the other bitmap has
+    public synchronized void or(Bitmap bitmap) {
+        bitfield.or(bitmap.copyBitset());
+        numPiecesHeld = bitfield.cardinality();
+        numSourcePiecesHeld = bitfield.get(0, numSourcePieces).cardinality();
+    }
+
+    // Whether the incoming bitmap has a piece that is missing from this one. Alternates between the next piece it has
+    // and the next piece this bitmap lacks, so runs of shared pieces are skipped instead of copied.
+    public synchronized boolean containsInterestedPieces(Bitmap bitmap) {
+        if (hasAllPieces()) {
+            return false; // Repair pieces are of no use to a complete peer
+        }
+        int index = bitmap.nextSetBit(0);
+        while (index >= 0 && index < numPieces) {
+            if (!bitfield.get(index)) {
+                return true;
+            }
+            index = bitmap.nextSetBit(bitfield.nextClearBit(index));
+        }
+        return false;
     }
 
     public synchronized List<Integer> getRemainingPieces(Bitmap bitmap) {
         List<Integer> indices = new ArrayList<>();
         // Checking against the bitmap that has more pieces, go through all the set pieces in the given bitmap to see if
         // any of those pieces are missing from the current bitfield.
-        for (int i = bitmap.getBitset().nextSetBit(0); i >= 0 && i < bitmap.getBitset().length(); i = bitmap.getBitset().nextSetBit(i + 1)) {
+        for (int i = bitmap.nextSetBit(0); i >= 0; i = bitmap.nextSetBit(i + 1)) {
             if (!bitfield.get(i)) {
                 indices.add(i);
             }
@@ -50,27 +101,81 @@ public class Bitmap {
     }
 
     public synchronized Integer getRandomRemainingPiece(Bitmap bitmap) {
-        List<Integer> indices = getRemainingPieces(bitmap);
+        return getRandomRemainingPiece(bitmap, new BitSet());
+    }
 
-        if (indices.isEmpty()) {
-            return -1;
+    // Same as above but skips pieces that were already requested from someone else. Once every remaining piece is
+    // requested (endgame), a requested piece is returned so that the download does not stall on a slow neighbor.
+    // The search starts at a random piece and wraps around, which is not perfectly uniform but needs no list of every
+    // candidate.
+    public synchronized Integer getRandomRemainingPiece(Bitmap bitmap, BitSet requested) {
+        int start = ThreadLocalRandom.current().nextInt(numPieces);
+        int piece = getNextRemainingPiece(bitmap, requested, start, numPieces);
+        if (piece == -1) {
+            piece = getNextRemainingPiece(bitmap, requested, 0, start);
         }
-        Random random = new Random();
-        int randomIndex = random.nextInt(indices.size());
+        if (piece == -1 && !requested.isEmpty()) {
+            piece = getRandomRemainingPiece(bitmap, new BitSet());
+        }
+        return piece;
+    }
 
-        return indices.get(randomIndex);
+    // The first piece in [from, to) that the other bitmap has, this one lacks and is not skipped, or -1
+    public synchronized int getNextRemainingPiece(Bitmap bitmap, BitSet skip, int from, int to) {
+        int index = bitmap.nextSetBit(from);
+        while (index >= 0 && index < Math.min(to, numPieces)) {
+            if (bitfield.get(index)) {
+                index = bitmap.nextSetBit(bitfield.nextClearBit(index));
+            } else if (skip.get(index)) {
+                index = bitmap.nextSetBit(index + 1);
+            } else {
+                return index;
+            }
+        }
+        return -1;
     }
 
-    public synchronized void markPieceAsReceived(int index) {
+    public synchronized boolean hasPiece(int index) {
+        return bitfield.get(index);
+    }
+
+    // Returns whether the piece is new, which is false for the second copy of a piece requested twice in endgame
+    public synchronized boolean markPieceAsReceived(int index) {
+        if (bitfield.get(index)) {
+            return false;
+        }
         bitfield.set(index);
+        numPiecesHeld++;
+        if (index < numSourcePieces) {
+            numSourcePiecesHeld++;
+        }
+        return true;
     }
 
     public synchronized byte[] getBitfield() {
         return bitfield.toByteArray();
     }
 
-    public synchronized BitSet getBitset() {
-        return bitfield;
+    // The first piece held at or after the given one, or -1. Bitmaps are only ever locked in the order own bitmap, then
+    // a neighbor's, so another bitmap can be walked with this while holding this one's lock.
+    public synchronized int nextSetBit(int from) {
+        return bitfield.nextSetBit(from);
+    }
+
+    // How many of the given pieces are held
+    public synchronized int countHeld(int[] pieces) {
+        int count = 0;
+        for (int piece : pieces) {
+            if (bitfield.get(piece)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // A copy of the pieces held, since the bitfield itself changes under the lock
+    private synchronized BitSet copyBitset() {
+        return (BitSet) bitfield.clone();
     }
 
     public synchronized void printBitfield() {
@@ -0,0 +1,48 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * A bounded pool of direct buffers of one size, so received pieces are read off the socket and written to storage
+ * without a piece-sized allocation on the heap. Buffers are created as they are first needed, up to the limit. Once all
+ * of them are in use, acquire() blocks until one is released, which holds back the connection readers the way a full
+ * stage queue does.
+ */
+public class BufferPool {
+    private final int bufferSize;
+    private final int maxBuffers;
+    private final BlockingQueue<ByteBuffer> free = new LinkedBlockingQueue<>();
+    private final AtomicInteger created = new AtomicInteger();
+
+    public BufferPool(int bufferSize, int maxBuffers) {
+        this.bufferSize = bufferSize;
+        this.maxBuffers = maxBuffers;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    // A cleared buffer of bufferSize bytes
+    public ByteBuffer acquire() throws InterruptedException {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            for (int count = created.get(); count < maxBuffers; count = created.get()) {
+                if (created.compareAndSet(count, count + 1)) {
+                    return ByteBuffer.allocateDirect(bufferSize);
+                }
+            }
+            buffer = free.take();
+        }
+        return buffer.clear();
+    }
+
+    public void release(ByteBuffer buffer) {
+        free.offer(buffer);
+    }
+
+    public int getCreated() {
+        return created.get();
+    }
+}
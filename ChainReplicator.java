@@ -0,0 +1,146 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Chain distribution for a swarm whose members are all known from PeerInfo.cfg. Instead of neighbors requesting
+ * pieces, the peers without the file are split into chains in config order, each seed pushes every piece in order to
+ * the head of its chains, and every peer forwards each piece to its successor as soon as it arrives, without waiting
+ * for it to be written. Every link carries the whole file once, so the last peer finishes about one file transfer
+ * plus a few pieces per hop after the start. The bounded outbound queues push back up the chain when a peer lags.
+ */
+public class ChainReplicator {
+    private static final long CONNECTION_CHECK_MS = 200;
+
+    private final Peer peer;
+    private final List<Integer> successors;
+    // Pieces received but possibly not written yet, kept so the forwarders do not have to read them back from disk. A
+    // piece is dropped once every forwarder is past it.
+    private final Map<Integer, byte[]> received = new HashMap<>();
+    private final int maxBuffered;
+    // The next piece each running forwarder sends, by the successor connection it forwards to
+    private final Map<Connection, Integer> forwarders = new HashMap<>();
+
+    public ChainReplicator(Peer peer, List<Peer.PeerInfo> peers, int chainCount, int maxBuffered) {
+        this.peer = peer;
+        this.maxBuffered = maxBuffered;
+        this.successors = buildChains(peers, chainCount).getOrDefault(peer.getPeerInfo().getPeerID(), List.of());
+        System.out.println("Chain successors of " + peer.getPeerInfo().getPeerID() + ": " + successors);
+    }
+
+    // Maps every peer to the peers it forwards to. Peers without the file are dealt round-robin into chainCount chains
+    // in config order, and the chains are dealt round-robin to the seeds.
+    public static Map<Integer, List<Integer>> buildChains(List<Peer.PeerInfo> peers, int chainCount) {
+        List<Integer> seeds = new ArrayList<>();
+        List<Integer> leechers = new ArrayList<>();
+        for (Peer.PeerInfo info : peers) {
+            (info.getHasFile() ? seeds : leechers).add(info.getPeerID());
+        }
+
+        Map<Integer, List<Integer>> successors = new HashMap<>();
+        if (seeds.isEmpty()) {
+            return successors;
+        }
+        int chains = Math.max(1, Math.min(chainCount, leechers.size()));
+        for (int chain = 0; chain < chains; chain++) {
+            int previous = seeds.get(chain % seeds.size());
+            for (int i = chain; i < leechers.size(); i += chains) {
+                successors.computeIfAbsent(previous, id -> new ArrayList<>()).add(leechers.get(i));
+                previous = leechers.get(i);
+            }
+        }
+        return successors;
+    }
+
+    // Starts forwarding to a successor once its connection is up. A successor that reconnects gets a new forwarder,
+    // which skips the pieces its bitfield already shows.
+    public void onConnected(int neighborID) {
+        if (!successors.contains(neighborID)) {
+            return;
+        }
+        Connection connection = peer.getNeighbors().getConnectedPeers().get(neighborID);
+        synchronized (this) {
+            forwarders.put(connection, 0);
+        }
+        peer.getExecutor().submit(new Peer.SafeRunnable(() -> {
+            try {
+                forward(neighborID, connection);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                synchronized (this) {
+                    forwarders.remove(connection);
+                    dropForwardedPieces();
+                }
+            }
+        }));
+    }
+
+    // Called on the protocol stage as soon as a piece arrives, before it is handed to the disk stage. Pieces every
+    // forwarder is already past and second copies of pieces already held are not kept.
+    public synchronized void onPieceReceived(int piece, byte[] data) {
+        if (!forwarders.isEmpty() && piece >= getSlowestPosition() && !peer.getBitmap().hasPiece(piece)
+                && received.size() < maxBuffered) {
+            received.put(piece, data);
+        }
+        notifyAll();
+    }
+
+    // Called once a piece is written, for pieces that did not fit into the buffer
+    public synchronized void onPieceStored() {
+        notifyAll();
+    }
+
+    private void forward(int successorID, Connection connection) throws InterruptedException {
+        System.out.println("Forwarding pieces down the chain to peer " + successorID);
+        for (int piece = 0; piece < peer.getNumPieces(); piece++) {
+            byte[] data = awaitPiece(piece, successorID, connection);
+            if (data == null) {
+                return; // The successor is gone
+            }
+            if (!peer.getNeighbors().getPeerBitfield(successorID).hasPiece(piece)) {
+                peer.getMessageManager().pushPiece(successorID, piece, data);
+                peer.getTrace().record(TraceRecorder.Event.PIECE_SERVED, successorID, piece, data.length);
+            }
+            synchronized (this) {
+                forwarders.put(connection, piece + 1);
+                dropForwardedPieces();
+            }
+        }
+        System.out.println("Forwarded every piece to peer " + successorID);
+    }
+
+    // Pieces arrive in order down a chain, so the forwarder simply waits for the next one
+    private byte[] awaitPiece(int piece, int successorID, Connection connection) throws InterruptedException {
+        synchronized (this) {
+            while (true) {
+                if (peer.getNeighbors().getConnectedPeers().get(successorID) != connection) {
+                    return null;
+                }
+                byte[] data = received.get(piece);
+                if (data != null) {
+                    return data;
+                }
+                if (peer.getBitmap().hasPiece(piece)) {
+                    break;
+                }
+                wait(CONNECTION_CHECK_MS);
+            }
+        }
+        return peer.getFileManager().readPiece(piece);
+    }
+
+    private void dropForwardedPieces() {
+        if (forwarders.isEmpty()) {
+            received.clear();
+            return;
+        }
+        int slowest = getSlowestPosition();
+        received.keySet().removeIf(piece -> piece < slowest);
+    }
+
+    private int getSlowestPosition() {
+        return forwarders.values().stream().mapToInt(Integer::intValue).min().orElse(0);
+    }
+}
@@ -0,0 +1,191 @@
+import java.io.BufferedInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+
+/*
+ * A connection to a neighbor over either TCP or a Unix domain socket. Both are blocking SocketChannels, so the handshake
+ * and message framing are the same whichever transport carries them.
+ */
+public class Connection {
+    private final SocketChannel channel;
+    private final boolean unixDomain;
+    private final BufferedInputStream in;
+    private final DataOutputStream out;
+    // For readFully, at most what the BufferedInputStream holds
+    private final byte[] scratch = new byte[8192];
+
+    public Connection(SocketChannel channel, boolean unixDomain) {
+        this.channel = channel;
+        this.unixDomain = unixDomain;
+        if (!unixDomain) {
+            try {
+                // Lets the OS notice a TCP neighbor that vanished without closing its end
+                channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+            } catch (IOException ignored) {
+            }
+        }
+        this.in = new BufferedInputStream(new ChannelInputStream(channel));
+        this.out = new DataOutputStream(new ChannelOutputStream(channel));
+    }
+
+    public static Connection openTcp(String hostname, int port, int connectTimeout) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.socket().connect(new InetSocketAddress(hostname, port), connectTimeout);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return new Connection(channel, false);
+    }
+
+    public static Connection openUnixDomain(Path path) throws IOException {
+        SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            channel.connect(UnixDomainSocketAddress.of(path));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return new Connection(channel, true);
+    }
+
+    // Where a peer listens for Unix domain connections, derived from its ID so no extra config is needed
+    public static Path unixDomainPath(String directory, int peerID) {
+        return Path.of(directory, "p2p_peer_" + peerID + ".sock");
+    }
+
+    // Whether the hostname refers to this machine, in which case the peer can be reached over a Unix domain socket
+    public static boolean isLocalHost(String hostname) {
+        try {
+            InetAddress address = InetAddress.getByName(hostname);
+            return address.isLoopbackAddress() || address.isAnyLocalAddress() || NetworkInterface.getByInetAddress(address) != null;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    public boolean isUnixDomain() {
+        return unixDomain;
+    }
+
+    public BufferedInputStream getInputStream() {
+        return in;
+    }
+
+    public DataOutputStream getOutputStream() {
+        return out;
+    }
+
+    // Reads exactly target.remaining() bytes. What the input stream already buffered is copied over first and the rest
+    // goes straight from the socket into the buffer, so a direct buffer is filled without passing through the heap.
+    // Only the thread reading the input stream may call this.
+    public void readFully(ByteBuffer target) throws IOException {
+        // ChannelInputStream reports nothing available, so this is exactly what the BufferedInputStream holds
+        int buffered = Math.min(in.available(), target.remaining());
+        while (buffered > 0) {
+            int read = in.read(scratch, 0, Math.min(buffered, scratch.length));
+            if (read < 0) {
+                throw new EOFException();
+            }
+            target.put(scratch, 0, read);
+            buffered -= read;
+        }
+        while (target.hasRemaining()) {
+            if (channel.read(target) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    public String getRemoteHost() {
+        try {
+            if (channel.getRemoteAddress() instanceof InetSocketAddress address) {
+                return address.getAddress().getHostAddress();
+            }
+        } catch (IOException ignored) {
+        }
+        return "localhost";
+    }
+
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    // Channels.newInputStream/newOutputStream lock the channel for every call, which would let a blocked read hold up
+    // writes on the same connection. These adapters call the channel directly, which allows one reader and one writer
+    // at a time.
+    private static class ChannelInputStream extends InputStream {
+        private final SocketChannel channel;
+
+        ChannelInputStream(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            int n = read(one, 0, 1);
+            return n == -1 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            return channel.read(ByteBuffer.wrap(b, off, len));
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    private static class ChannelOutputStream extends OutputStream {
+        private final SocketChannel channel;
+
+        ChannelOutputStream(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
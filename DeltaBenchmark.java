@@ -0,0 +1,98 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+
+/*
+ * Measures a differential update: writes a version of a file, a next version with a share of its pieces changed, and
+ * the manifest of the next version, then rebuilds as much of the next version from the first as a peer would before
+ * connecting. Reports how many bytes still have to be downloaded and how fast the unchanged pieces were reused.
+ *
+ * Usage: java DeltaBenchmark [<megabytes> <pieceSize> <changedPercent>]
+ */
+public class DeltaBenchmark {
+    public static void main(String[] args) throws IOException {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        int pieceSize = args.length > 1 ? Integer.parseInt(args[1]) : 16384;
+        double changedPercent = args.length > 2 ? Double.parseDouble(args[2]) : 5;
+        long fileSize = (long) megabytes * 1024 * 1024;
+        int numPieces = (int) ((fileSize + pieceSize - 1) / pieceSize);
+
+        Path directory = Files.createTempDirectory("delta_benchmark");
+        Path previous = directory.resolve("previous");
+        Path next = directory.resolve("next");
+        Path rebuilt = directory.resolve("rebuilt");
+        try {
+            BitSet changed = writeVersions(previous, next, fileSize, pieceSize, numPieces, changedPercent);
+
+            long start = System.nanoTime();
+            Manifest manifest = Manifest.compute(next, pieceSize);
+            double hashSeconds = (System.nanoTime() - start) / 1e9;
+
+            FileManager fileManager = new FileManager(rebuilt.toString(), fileSize, pieceSize, numPieces, false);
+            Bitmap bitmap = new Bitmap(numPieces, false);
+            start = System.nanoTime();
+            int reused = manifest.reusePieces(previous, fileManager, bitmap);
+            double reuseSeconds = (System.nanoTime() - start) / 1e9;
+
+            // Every reused piece must match the next version, and every changed piece must be left to download
+            int wrong = 0;
+            for (int piece = 0; piece < numPieces; piece++) {
+                if (bitmap.hasPiece(piece) && (changed.get(piece)
+                        || !Manifest.hash(fileManager.readPiece(piece), fileManager.getPieceLength(piece)).equals(manifest.getHash(piece)))) {
+                    wrong++;
+                }
+            }
+            fileManager.close();
+
+            long download = 0;
+            for (int piece = 0; piece < numPieces; piece++) {
+                if (!bitmap.hasPiece(piece)) {
+                    download += fileManager.getPieceLength(piece);
+                }
+            }
+            System.out.println(String.format("%d MB in %d pieces of %d bytes, %d pieces changed (%.1f%%)", megabytes, numPieces,
+                    pieceSize, changed.cardinality(), changedPercent));
+            System.out.println(String.format("Manifest: %.3f s (%.1f MB/s)", hashSeconds, megabytes / hashSeconds));
+            System.out.println(String.format("Reuse:    %d pieces in %.3f s (%.1f MB/s of the previous version), %d wrong",
+                    reused, reuseSeconds, megabytes / reuseSeconds, wrong));
+            System.out.println(String.format("Download: %d of %d bytes (%.1f%% of a full transfer)", download, fileSize,
+                    100.0 * download / fileSize));
+        } finally {
+            for (Path path : new Path[]{previous, next, rebuilt, directory}) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    // Writes random pieces to the previous version and the same pieces to the next one, except for the changed ones
+    private static BitSet writeVersions(Path previous, Path next, long fileSize, int pieceSize, int numPieces,
+                                        double changedPercent) throws IOException {
+        Random random = new Random(1);
+        BitSet changed = new BitSet(numPieces);
+        int numChanged = (int) Math.round(numPieces * changedPercent / 100);
+        while (changed.cardinality() < numChanged) {
+            changed.set(random.nextInt(numPieces));
+        }
+
+        FileManager previousFile = new FileManager(previous.toString(), fileSize, pieceSize, numPieces, false);
+        FileManager nextFile = new FileManager(next.toString(), fileSize, pieceSize, numPieces, false);
+        byte[] data = new byte[pieceSize];
+        for (int piece = 0; piece < numPieces; piece++) {
+            int length = previousFile.getPieceLength(piece);
+            random.nextBytes(data);
+            byte[] content = Arrays.copyOf(data, length);
+            previousFile.writePiece(piece, content);
+            if (changed.get(piece)) {
+                random.nextBytes(data);
+                content = Arrays.copyOf(data, length);
+            }
+            nextFile.writePiece(piece, content);
+        }
+        previousFile.close();
+        nextFile.close();
+        return changed;
+    }
+}
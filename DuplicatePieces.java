@@ -0,0 +1,86 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Pieces with identical content, found by grouping the pieces of the manifest by hash, such as the zero padding of a
+ * disk image or a block that repeats. A group is downloaded once: the picker treats a group with a request in flight as
+ * requested, and the first member to arrive is written to every other index of the group, which are then announced
+ * together with it.
+ */
+public class DuplicatePieces {
+    private final Peer peer;
+    // For every piece with duplicates, all pieces of its group, itself included, in index order
+    private final int[][] groups;
+    private final int numDuplicates;
+    private final AtomicLong piecesFilled = new AtomicLong();
+    private final AtomicLong bytesFilled = new AtomicLong();
+
+    public DuplicatePieces(Peer peer, Manifest manifest) {
+        this.peer = peer;
+        this.groups = new int[manifest.getNumPieces()][];
+        Map<String, List<Integer>> byHash = new HashMap<>();
+        for (int piece = 0; piece < manifest.getNumPieces(); piece++) {
+            byHash.computeIfAbsent(manifest.getHash(piece), hash -> new ArrayList<>()).add(piece);
+        }
+        int duplicates = 0;
+        for (List<Integer> group : byHash.values()) {
+            if (group.size() < 2) {
+                continue;
+            }
+            int[] members = group.stream().mapToInt(Integer::intValue).toArray();
+            for (int piece : members) {
+                groups[piece] = members;
+            }
+            duplicates += members.length - 1;
+        }
+        this.numDuplicates = duplicates;
+    }
+
+    // Pieces that need not be transferred because another piece has the same content
+    public int getNumDuplicates() {
+        return numDuplicates;
+    }
+
+    // Marks every member of a group that has any member requested, so the group is requested only once
+    public void addGroupsOf(BitSet requested) {
+        for (int piece = requested.nextSetBit(0); piece >= 0 && piece < groups.length; piece = requested.nextSetBit(piece + 1)) {
+            if (groups[piece] != null) {
+                for (int member : groups[piece]) {
+                    requested.set(member);
+                }
+            }
+        }
+    }
+
+    // Writes a stored piece's data to the other pieces of its group that are still missing and marks them. Returns the
+    // pieces it filled.
+    public List<Integer> fill(int piece, ByteBuffer data) {
+        if (piece >= groups.length || groups[piece] == null) {
+            return List.of();
+        }
+        List<Integer> filled = new ArrayList<>();
+        for (int member : groups[piece]) {
+            if (member == piece || peer.getBitmap().hasPiece(member)) {
+                continue;
+            }
+            peer.getFileManager().writePiece(member, data);
+            if (peer.getBitmap().markPieceAsReceived(member)) {
+                filled.add(member);
+                bytesFilled.addAndGet(data.remaining());
+            }
+        }
+        piecesFilled.addAndGet(filled.size());
+        return filled;
+    }
+
+    public void reportStatistics() {
+        if (piecesFilled.get() > 0) {
+            peer.getLogger().logDuplicatesFilled(piecesFilled.get(), bytesFilled.get());
+        }
+    }
+}
@@ -0,0 +1,306 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Optional erasure coding of the shared file. The source pieces are split into groups of up to GroupSize pieces, and the
+ * seed adds RepairPieces coded pieces to every group with a systematic Reed-Solomon code over GF(256): each byte of a
+ * repair piece is a Cauchy matrix row times the same byte of the group's source pieces. Any GroupSize distinct pieces of
+ * a group, source or repair, are enough to rebuild its missing source pieces, so the end of a download no longer waits
+ * on whichever neighbor holds one exact piece.
+ *
+ * Repair pieces are numbered after the source pieces, group by group, and travel like any other piece. They are stored
+ * next to the file in <FileName>.repair.
+ */
+public class ErasureCoder {
+    // Rebuilt pieces are stored like pieces received from a neighbor with this ID
+    public static final int REBUILT_ID = -2;
+    private static final int FIELD_SIZE = 256;
+    private static final int PRIMITIVE_POLYNOMIAL = 0x11d;
+    private static final byte[] EXP = new byte[2 * FIELD_SIZE];
+    private static final int[] LOG = new int[FIELD_SIZE];
+    // MUL[a][b] = a * b, so the inner loops are one table lookup per byte
+    private static final byte[][] MUL = new byte[FIELD_SIZE][FIELD_SIZE];
+
+    static {
+        int x = 1;
+        for (int i = 0; i < FIELD_SIZE - 1; i++) {
+            EXP[i] = (byte) x;
+            LOG[x] = i;
+            x <<= 1;
+            if (x >= FIELD_SIZE) {
+                x ^= PRIMITIVE_POLYNOMIAL;
+            }
+        }
+        for (int i = FIELD_SIZE - 1; i < EXP.length; i++) {
+            EXP[i] = EXP[i - (FIELD_SIZE - 1)];
+        }
+        for (int a = 1; a < FIELD_SIZE; a++) {
+            for (int b = 1; b < FIELD_SIZE; b++) {
+                MUL[a][b] = EXP[LOG[a] + LOG[b]];
+            }
+        }
+    }
+
+    private final Peer peer;
+    private final int groupSize;
+    private final int repairPieces;
+    private final int numSourcePieces;
+    private final int numGroups;
+    private final int pieceSize;
+    private final AtomicLong decodedBytes = new AtomicLong();
+    private final AtomicLong decodeNanos = new AtomicLong();
+
+    public ErasureCoder(Peer peer, int groupSize, int repairPieces, int numSourcePieces, int pieceSize) {
+        this.peer = peer;
+        this.groupSize = groupSize;
+        this.repairPieces = repairPieces;
+        this.numSourcePieces = numSourcePieces;
+        this.numGroups = getNumGroups(numSourcePieces, groupSize);
+        this.pieceSize = pieceSize;
+    }
+
+    public static int getNumGroups(int numSourcePieces, int groupSize) {
+        return (numSourcePieces + groupSize - 1) / groupSize;
+    }
+
+    private static int inverse(int a) {
+        return EXP[FIELD_SIZE - 1 - LOG[a]] & 0xff;
+    }
+
+    private static int multiply(int a, int b) {
+        return MUL[a][b] & 0xff;
+    }
+
+    // Row r of the Cauchy matrix for a group of k source pieces. Source piece j is the point j and repair piece r the
+    // point k + r, so every entry is defined and any k rows of [identity; Cauchy] are independent.
+    private static int coefficient(int k, int r, int j) {
+        return inverse((k + r) ^ j);
+    }
+
+    // out ^= coefficient * in
+    private static void multiplyAdd(byte[] out, byte[] in, int coefficient) {
+        if (coefficient == 0) {
+            return;
+        }
+        byte[] row = MUL[coefficient];
+        int length = Math.min(out.length, in.length);
+        for (int i = 0; i < length; i++) {
+            out[i] ^= row[in[i] & 0xff];
+        }
+    }
+
+    public int getNumGroups() {
+        return numGroups;
+    }
+
+    public boolean isRepairPiece(int piece) {
+        return piece >= numSourcePieces;
+    }
+
+    public int getGroup(int piece) {
+        return isRepairPiece(piece) ? (piece - numSourcePieces) / repairPieces : piece / groupSize;
+    }
+
+    private int getGroupSourceCount(int group) {
+        return Math.min(groupSize, numSourcePieces - group * groupSize);
+    }
+
+    // Source pieces of the group first, then its repair pieces, in the order the code numbers them
+    private int[] getGroupPieces(int group) {
+        int sources = getGroupSourceCount(group);
+        int[] pieces = new int[sources + repairPieces];
+        for (int j = 0; j < sources; j++) {
+            pieces[j] = group * groupSize + j;
+        }
+        for (int r = 0; r < repairPieces; r++) {
+            pieces[sources + r] = numSourcePieces + group * repairPieces + r;
+        }
+        return pieces;
+    }
+
+    private int countHeld(int[] pieces, BitSet held) {
+        int count = 0;
+        for (int piece : pieces) {
+            if (held.get(piece)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // Computes the repair pieces of every group from the source file. Run by the seed before it serves anything.
+    public void encode(FileManager fileManager) {
+        long start = System.nanoTime();
+        for (int group = 0; group < numGroups; group++) {
+            int sources = getGroupSourceCount(group);
+            byte[][] repair = new byte[repairPieces][pieceSize];
+            for (int j = 0; j < sources; j++) {
+                byte[] data = fileManager.readPiece(group * groupSize + j);
+                for (int r = 0; r < repairPieces; r++) {
+                    multiplyAdd(repair[r], data, coefficient(sources, r, j));
+                }
+            }
+            for (int r = 0; r < repairPieces; r++) {
+                fileManager.writePiece(numSourcePieces + group * repairPieces + r, repair[r]);
+            }
+        }
+        peer.getLogger().logErasureStatistics("encoded", peer.getFileSize(), (System.nanoTime() - start) / 1e9);
+    }
+
+    // The next piece worth requesting from a neighbor: one from a group that cannot be rebuilt yet and still lacks pieces
+    // after counting the requests in flight. Source pieces come first, since they need no decoding, and repair pieces
+    // fill in for source pieces the neighbor does not have. Once every short group has enough pieces requested, a spare
+    // piece of one of them is requested instead of a second copy of a requested piece.
+    public int pickPiece(Bitmap bitmap, Bitmap neighborBitmap, BitSet requested) {
+        int[] spare = {-1};
+        int piece = pickPiece(bitmap, neighborBitmap, requested, 0, numSourcePieces, spare);
+        if (piece == -1) {
+            piece = pickPiece(bitmap, neighborBitmap, requested, numSourcePieces, peer.getNumPieces(), spare);
+        }
+        return piece != -1 ? piece : spare[0];
+    }
+
+    // Searches [from, to) starting at a random piece and wrapping around
+    private int pickPiece(Bitmap bitmap, Bitmap neighborBitmap, BitSet requested, int from, int to, int[] spare) {
+        if (from >= to) {
+            return -1;
+        }
+        int start = from + ThreadLocalRandom.current().nextInt(to - from);
+        for (int pass = 0; pass < 2; pass++) {
+            int end = pass == 0 ? to : start;
+            int piece = bitmap.getNextRemainingPiece(neighborBitmap, requested, pass == 0 ? start : from, end);
+            while (piece != -1) {
+                int group = getGroup(piece);
+                int[] groupPieces = getGroupPieces(group);
+                int heldInGroup = bitmap.countHeld(groupPieces);
+                if (heldInGroup + countHeld(groupPieces, requested) < getGroupSourceCount(group)) {
+                    return piece;
+                }
+                if (spare[0] == -1 && heldInGroup < getGroupSourceCount(group)) {
+                    spare[0] = piece;
+                }
+                piece = bitmap.getNextRemainingPiece(neighborBitmap, requested, piece + 1, end);
+            }
+        }
+        return -1;
+    }
+
+    // Whether the neighbor has a piece of a group this peer cannot rebuild yet. Pieces of groups that are already
+    // complete are of no use, and staying interested in them would take unchoke slots from peers that need them.
+    public boolean isInteresting(Bitmap bitmap, Bitmap neighborBitmap) {
+        int piece = bitmap.getNextRemainingPiece(neighborBitmap, new BitSet(), 0, peer.getNumPieces());
+        while (piece != -1) {
+            int group = getGroup(piece);
+            if (bitmap.countHeld(getGroupPieces(group)) < getGroupSourceCount(group)) {
+                return true;
+            }
+            piece = bitmap.getNextRemainingPiece(neighborBitmap, new BitSet(), piece + 1, peer.getNumPieces());
+        }
+        return false;
+    }
+
+    // Rebuilds the missing source pieces of the piece's group once enough of its pieces are held and returns them by
+    // index, to be stored like received pieces. Returns nothing while the group is still short.
+    public Map<Integer, ByteBuffer> onPieceStored(int piece) {
+        int group = getGroup(piece);
+        int sources = getGroupSourceCount(group);
+        int[] groupPieces = getGroupPieces(group);
+
+        List<Integer> missing = new ArrayList<>();
+        List<Integer> available = new ArrayList<>(); // Positions within the group
+        for (int position = 0; position < groupPieces.length; position++) {
+            if (peer.getBitmap().hasPiece(groupPieces[position])) {
+                if (available.size() < sources) {
+                    available.add(position);
+                }
+            } else if (position < sources) {
+                missing.add(position);
+            }
+        }
+        if (missing.isEmpty() || available.size() < sources) {
+            return Map.of();
+        }
+
+        long start = System.nanoTime();
+        // Row i expresses available piece i in terms of the source pieces, inverting it expresses the sources in terms
+        // of the available pieces
+        int[][] matrix = new int[sources][sources];
+        for (int i = 0; i < sources; i++) {
+            int position = available.get(i);
+            for (int j = 0; j < sources; j++) {
+                matrix[i][j] = position < sources ? (position == j ? 1 : 0) : coefficient(sources, position - sources, j);
+            }
+        }
+        int[][] inverse = invert(matrix);
+
+        FileManager fileManager = peer.getFileManager();
+        byte[][] data = new byte[sources][];
+        for (int i = 0; i < sources; i++) {
+            data[i] = fileManager.readPiece(groupPieces[available.get(i)]);
+        }
+        Map<Integer, ByteBuffer> rebuilt = new LinkedHashMap<>();
+        for (int position : missing) {
+            int index = groupPieces[position];
+            byte[] output = new byte[pieceSize];
+            for (int i = 0; i < sources; i++) {
+                multiplyAdd(output, data[i], inverse[position][i]);
+            }
+            rebuilt.put(index, ByteBuffer.wrap(output, 0, fileManager.getPieceLength(index)));
+        }
+        decodedBytes.addAndGet((long) rebuilt.size() * pieceSize);
+        decodeNanos.addAndGet(System.nanoTime() - start);
+        return rebuilt;
+    }
+
+    public void reportDecodeStatistics() {
+        if (decodedBytes.get() > 0) {
+            peer.getLogger().logErasureStatistics("decoded", decodedBytes.get(), decodeNanos.get() / 1e9);
+        }
+    }
+
+    // Gauss-Jordan elimination over GF(256)
+    private static int[][] invert(int[][] matrix) {
+        int n = matrix.length;
+        int[][] a = new int[n][];
+        int[][] inverse = new int[n][n];
+        for (int i = 0; i < n; i++) {
+            a[i] = matrix[i].clone();
+            inverse[i][i] = 1;
+        }
+        for (int column = 0; column < n; column++) {
+            int pivot = column;
+            while (a[pivot][column] == 0) {
+                pivot++; // Any selection of rows is invertible, so a pivot always exists
+            }
+            int[] swap = a[pivot];
+            a[pivot] = a[column];
+            a[column] = swap;
+            swap = inverse[pivot];
+            inverse[pivot] = inverse[column];
+            inverse[column] = swap;
+
+            int scale = inverse(a[column][column]);
+            for (int j = 0; j < n; j++) {
+                a[column][j] = multiply(a[column][j], scale);
+                inverse[column][j] = multiply(inverse[column][j], scale);
+            }
+            for (int row = 0; row < n; row++) {
+                int factor = a[row][column];
+                if (row == column || factor == 0) {
+                    continue;
+                }
+                for (int j = 0; j < n; j++) {
+                    a[row][j] ^= multiply(a[column][j], factor);
+                    inverse[row][j] ^= multiply(inverse[column][j], factor);
+                }
+            }
+        }
+        return inverse;
+    }
+}
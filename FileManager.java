@@ -1,51 +1,216 @@
-import java.io.RandomAccessFile;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
+/*
+ * Reads and writes pieces of the shared file. Piece lengths and the routing of repair pieces are handled here, and the
+ * pieces themselves are kept in a PieceStore. Unless the store already is the output file, assemble() writes the
+ * pieces out to peer_<id>/<FileName> in order once the download is complete, so every store ends with the same file.
+ * The most recently read pieces can be kept on the heap, so a long-running seed serves popular pieces without going
+ * back to the store. Callers must not modify the arrays readPiece returns.
+ */
 public class FileManager {
+    private final int peerID;
     private final String filePath;
-    private final int fileSize;
+    private final long fileSize;
     private final int pieceSize;
+    private final int numPieces;
     private final boolean containsInitialFile;
+    private final PieceStore store;
+    // With erasure coding, pieces numbered after the file's own pieces are repair pieces kept in a second file
+    private FileManager repairStore;
+    // Recently read pieces in least recently used order, or null if nothing is cached
+    private Map<Integer, byte[]> pieceCache;
 
-    public FileManager(int peerID, String fileName, int fileSize, int pieceSize, int numPieces, boolean containsInitialFile) {
-        this.filePath = "peer_" + peerID + "/" + fileName;
+    public FileManager(int peerID, String fileName, long fileSize, int pieceSize, int numPieces, boolean containsInitialFile) {
+        this(peerID, "peer_" + peerID + "/" + fileName, fileSize, pieceSize, numPieces, containsInitialFile,
+                new MappedPieceStore("peer_" + peerID + "/" + fileName, fileSize, pieceSize, containsInitialFile));
+    }
+
+    // A file outside any peer, whose flight recorder events carry peer ID -1
+    public FileManager(String filePath, long fileSize, int pieceSize, int numPieces, boolean containsInitialFile) {
+        this(-1, filePath, fileSize, pieceSize, numPieces, containsInitialFile,
+                new MappedPieceStore(filePath, fileSize, pieceSize, containsInitialFile));
+    }
+
+    public FileManager(int peerID, String filePath, long fileSize, int pieceSize, int numPieces, boolean containsInitialFile, PieceStore store) {
+        this.peerID = peerID;
+        this.filePath = filePath;
         this.fileSize = fileSize;
         this.pieceSize = pieceSize;
+        this.numPieces = numPieces;
         this.containsInitialFile = containsInitialFile;
+        this.store = store;
     }
 
-    public synchronized byte[] readPiece(Integer pieceIndex) {
-        try (RandomAccessFile sourceFile = new RandomAccessFile(filePath, "r")) {
-            long startByte = (long) pieceIndex * pieceSize;
-            if (startByte >= sourceFile.length()) {
-                System.out.println("Start byte is beyond file size. " + startByte + " " + pieceIndex);
-                return new byte[0];
+    public void setRepairStore(FileManager repairStore) {
+        this.repairStore = repairStore;
+    }
+
+    // Keeps up to the given number of recently read pieces on the heap
+    public synchronized void setPieceCache(int pieces) {
+        if (pieces <= 0) {
+            pieceCache = null;
+            return;
+        }
+        pieceCache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+                return size() > pieces;
             }
+        };
+    }
 
-            sourceFile.seek(startByte);
-            int bytesToRead = (int) Math.min(pieceSize, sourceFile.length() - startByte); // Handles last piece size
-            byte[] buffer = new byte[bytesToRead];
-            sourceFile.readFully(buffer);
+    // Every piece is PieceSize long except the last one, which holds whatever is left of the file
+    public int getPieceLength(int pieceIndex) {
+        if (repairStore != null && pieceIndex >= numPieces) {
+            return repairStore.getPieceLength(pieceIndex - numPieces);
+        }
+        if (pieceIndex == numPieces - 1) {
+            return (int) (fileSize - (long) pieceIndex * pieceSize);
+        }
+        return pieceSize;
+    }
 
-            return buffer;
+    public void preallocate() {
+        if (repairStore != null) {
+            repairStore.preallocate();
+        }
+        if (!containsInitialFile) {
+            try {
+                store.preallocate();
+            } catch (IOException e) {
+                System.out.println("Could not preallocate " + filePath + ": " + e.getMessage());
+            }
+        }
+    }
+
+    public byte[] readPiece(Integer pieceIndex) {
+        FlightEvents.PieceRead event = new FlightEvents.PieceRead();
+        event.begin();
+        byte[] data = read(pieceIndex);
+        event.end();
+        if (event.shouldCommit()) {
+            event.peerID = peerID;
+            event.pieceIndex = pieceIndex;
+            event.bytes = data.length;
+            event.commit();
+        }
+        return data;
+    }
+
+    public void writePiece(Integer pieceIndex, byte[] data) {
+        writePiece(pieceIndex, ByteBuffer.wrap(data));
+    }
+
+    // Writes the data's remaining bytes and leaves its position alone. A direct buffer reaches the store without a copy
+    // on the heap.
+    public void writePiece(int pieceIndex, ByteBuffer data) {
+        FlightEvents.PieceWritten event = new FlightEvents.PieceWritten();
+        event.begin();
+        write(pieceIndex, data);
+        event.end();
+        if (event.shouldCommit()) {
+            event.peerID = peerID;
+            event.pieceIndex = pieceIndex;
+            event.bytes = data.remaining();
+            event.commit();
+        }
+    }
+
+    // Repair pieces go through here rather than through the repair store's readPiece, so they are recorded once
+    private byte[] read(int pieceIndex) {
+        if (repairStore != null && pieceIndex >= numPieces) {
+            return repairStore.read(pieceIndex - numPieces);
+        }
+        byte[] cached = getCachedPiece(pieceIndex);
+        if (cached != null) {
+            return cached;
+        }
+        try {
+            byte[] data = store.read(pieceIndex, getPieceLength(pieceIndex));
+            cachePiece(pieceIndex, data);
+            return data;
         } catch (Exception e) {
             System.out.println("File not found issue with reading piece from file");
         }
         return new byte[0];
     }
 
-    public synchronized void writePiece(Integer pieceIndex, byte[] data) {
+    private synchronized byte[] getCachedPiece(int pieceIndex) {
+        return pieceCache != null ? pieceCache.get(pieceIndex) : null;
+    }
+
+    private synchronized void cachePiece(int pieceIndex, byte[] data) {
+        if (pieceCache != null) {
+            pieceCache.put(pieceIndex, data);
+        }
+    }
+
+    private void write(int pieceIndex, ByteBuffer data) {
+        if (repairStore != null && pieceIndex >= numPieces) {
+            repairStore.write(pieceIndex - numPieces, data);
+            return;
+        }
+        synchronized (this) {
+            if (pieceCache != null) {
+                pieceCache.remove(pieceIndex);
+            }
+        }
         if (!containsInitialFile) { // Never write to an original file to avoid problems. This is only for this project
-            try (RandomAccessFile outputFile = new RandomAccessFile(filePath, "rw")) {
-                long startByte = (long) pieceIndex * pieceSize;
-                if (startByte + data.length > outputFile.length()) {
-                    outputFile.setLength(startByte + data.length);
-                }
-                outputFile.seek(startByte);
-                outputFile.write(data);
+            try {
+                store.write(pieceIndex, data);
             } catch (Exception e) {
                 System.out.println("File not found issue with writing piece to file");
             }
         }
     }
 
+    // Forces the written pieces to disk, repair pieces included
+    public void flush() {
+        if (repairStore != null) {
+            repairStore.flush();
+        }
+        if (containsInitialFile) {
+            return; // Nothing was written
+        }
+        try {
+            store.flush();
+        } catch (IOException e) {
+            System.out.println("Could not flush " + filePath + ": " + e.getMessage());
+        }
+    }
+
+    // Writes the pieces out to the output file in order. Returns false if there was nothing to do.
+    public boolean assemble() throws IOException {
+        if (containsInitialFile || store.isOutputFile()) {
+            return false;
+        }
+        try (FileChannel output = FileChannel.open(Path.of(filePath), StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (int piece = 0; piece < numPieces; piece++) {
+                ByteBuffer buffer = ByteBuffer.wrap(store.read(piece, getPieceLength(piece)));
+                while (buffer.hasRemaining()) {
+                    output.write(buffer);
+                }
+            }
+            output.force(false);
+        }
+        return true;
+    }
+
+    public synchronized void close() {
+        pieceCache = null;
+        if (repairStore != null) {
+            repairStore.close();
+        }
+        try {
+            store.close();
+        } catch (IOException ignored) {
+        }
+    }
 }
@@ -0,0 +1,150 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/*
+ * JDK Flight Recorder events, so a recording shows what each peer was doing next to the JVM's own GC, thread and I/O
+ * events in JDK Mission Control. Start a peer with
+ *
+ *     java -XX:StartFlightRecording:settings=p2p.jfc,filename=peer.jfr PeerProcess <peerID>
+ *
+ * p2p.jfc enables these events along with a low-overhead selection of JDK events. Callers create an event, call begin()
+ * before the work it times and commit it only if shouldCommit() says the recorder wants it, so fields are filled in
+ * only while recording. With no recording running, or the event disabled, that check is all an event costs.
+ */
+public final class FlightEvents {
+    private FlightEvents() {
+    }
+
+    @Name("p2p.MessageSent")
+    @Label("Message Sent")
+    @Category({"P2P", "Messages"})
+    @Description("A message queued for a neighbor. The duration is how long queueing blocked on a neighbor that is behind.")
+    @StackTrace(false)
+    static class MessageSent extends Event {
+        @Label("Peer ID")
+        int peerID;
+        @Label("Neighbor ID")
+        int neighborID;
+        @Label("Type")
+        String type;
+        @Label("Piece Index")
+        @Description("-1 for messages not about a single piece")
+        int pieceIndex;
+        @Label("Bytes")
+        @DataAmount
+        int bytes;
+    }
+
+    @Name("p2p.MessageReceived")
+    @Label("Message Received")
+    @Category({"P2P", "Messages"})
+    @Description("A message read from a neighbor. The duration is the time to read its body once its length arrived.")
+    @StackTrace(false)
+    static class MessageReceived extends Event {
+        @Label("Peer ID")
+        int peerID;
+        @Label("Neighbor ID")
+        int neighborID;
+        @Label("Type")
+        String type;
+        @Label("Piece Index")
+        @Description("-1 for messages not about a single piece")
+        int pieceIndex;
+        @Label("Bytes")
+        @DataAmount
+        int bytes;
+    }
+
+    @Name("p2p.PieceRead")
+    @Label("Piece Read")
+    @Category({"P2P", "Storage"})
+    @StackTrace(false)
+    static class PieceRead extends Event {
+        @Label("Peer ID")
+        @Description("-1 outside a peer, such as in a benchmark")
+        int peerID;
+        @Label("Piece Index")
+        int pieceIndex;
+        @Label("Bytes")
+        @DataAmount
+        int bytes;
+    }
+
+    @Name("p2p.PieceWritten")
+    @Label("Piece Written")
+    @Category({"P2P", "Storage"})
+    @StackTrace(false)
+    static class PieceWritten extends Event {
+        @Label("Peer ID")
+        @Description("-1 outside a peer, such as in a benchmark")
+        int peerID;
+        @Label("Piece Index")
+        int pieceIndex;
+        @Label("Bytes")
+        @DataAmount
+        int bytes;
+    }
+
+    @Name("p2p.ChokeRound")
+    @Label("Choke Round")
+    @Category({"P2P", "Choking"})
+    @Description("One choice of preferred or optimistically unchoked neighbors, timed from the decision to the last message")
+    @StackTrace(false)
+    static class ChokeRound extends Event {
+        @Label("Peer ID")
+        int peerID;
+        @Label("Optimistic")
+        boolean optimistic;
+        @Label("Slots")
+        int slots;
+        @Label("Interested Neighbors")
+        int interested;
+        @Label("Unchoked")
+        @Description("The neighbors unchoked this round, comma separated")
+        String unchoked;
+        @Label("Choked")
+        @Description("The neighbors choked this round, comma separated")
+        String choked;
+    }
+
+    @Name("p2p.PieceCompleted")
+    @Label("Piece Completed")
+    @Category({"P2P", "Transfer"})
+    @Description("A received piece stored and announced. The duration covers writing it and everything that follows.")
+    @StackTrace(false)
+    static class PieceCompleted extends Event {
+        @Label("Peer ID")
+        int peerID;
+        @Label("Neighbor ID")
+        int neighborID;
+        @Label("Piece Index")
+        int pieceIndex;
+        @Label("Bytes")
+        @DataAmount
+        int bytes;
+        @Label("Pieces Held")
+        int piecesHeld;
+    }
+
+    @Name("p2p.DownloadCompleted")
+    @Label("Download Completed")
+    @Category({"P2P", "Transfer"})
+    @StackTrace(false)
+    static class DownloadCompleted extends Event {
+        @Label("Peer ID")
+        int peerID;
+        @Label("File Size")
+        @DataAmount
+        long fileSize;
+        @Label("Elapsed")
+        @Description("Time since the peer started")
+        @Timespan(Timespan.NANOSECONDS)
+        long elapsed;
+    }
+}
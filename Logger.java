@@ -38,6 +38,10 @@ public class Logger {
         logTime(String.format("Peer %d is connected from Peer %d", peerID, connectedPeerID));
     }
 
+    public synchronized void logDisconnected(int connectedPeerID) {
+        logTime(String.format("Peer %d is disconnected from Peer %d.", peerID, connectedPeerID));
+    }
+
     // Change of Preferred Neighbors
     public synchronized void logPreferredNeighbors(List<Integer> preferredPeerIDs) {
         String IDs = String.join(",", preferredPeerIDs.stream().map(String::valueOf).toList());
@@ -58,6 +62,22 @@ public class Logger {
         logTime(String.format("Peer %d is choked by %d.", peerID, chokingPeerID));
     }
 
+    // Snubbing
+    public synchronized void logSnubbed(int snubbingPeerID, long seconds, int movedRequests) {
+        logTime(String.format("Peer %d is snubbed by %d, which sent no piece for %d s, and moved %d requests to other neighbors.",
+                peerID, snubbingPeerID, seconds, movedRequests));
+    }
+
+    public synchronized void logSnubRecovered(int snubbingPeerID) {
+        logTime(String.format("Peer %d is no longer snubbed by %d.", peerID, snubbingPeerID));
+    }
+
+    public synchronized void logUploadShares(long bytes, long elapsedNanos, String preferred, String optimistic, String other,
+                                             String shares) {
+        logTime(String.format("Peer %d uploaded %d bytes in the last %.1f s, %s to preferred, %s to optimistic and %s to choked neighbors: %s.",
+                peerID, bytes, elapsedNanos / 1e9, preferred, optimistic, other, shares));
+    }
+
     // Receiving [have/interest/not interested] message
     public synchronized void logReceivedHave(int connectedPeerID, int pieceIndex) {
         logTime(String.format("Peer %d received the ‘have’ message from %d for the piece %d.", peerID, connectedPeerID, pieceIndex));
@@ -76,8 +96,69 @@ public class Logger {
         logTime(String.format("Peer %d has downloaded the piece %d from %d. Now the number of pieces it has is %d.", peerID, pieceIndex, connectedPeerID, numberOfPieces));
     }
 
+    public synchronized void logDownloadedPieceFromOrigin(int pieceIndex, int numberOfPieces) {
+        logTime(String.format("Peer %d has downloaded the piece %d from the origin. Now the number of pieces it has is %d.", peerID, pieceIndex, numberOfPieces));
+    }
+
+    public synchronized void logOriginStatistics(long pieces, long bytes) {
+        logTime(String.format("Peer %d fetched %d pieces (%d bytes) from the origin.", peerID, pieces, bytes));
+    }
+
     // Completion of Download
     public synchronized void logDownloadedFile() {
         logTime(String.format("Peer %d has downloaded the complete file.", peerID));
     }
+
+    // Super-seeding
+    public synchronized void logSuperSeedingFinished() {
+        logTime(String.format("Peer %d has uploaded every piece once and stops super-seeding.", peerID));
+    }
+
+    // Transfer statistics: piece bytes versus the bytes that crossed the wire, which differ when compression is on
+    public synchronized void logTransferStatistics(String direction, long pieceBytes, long wireBytes, double seconds) {
+        double ratio = pieceBytes == 0 ? 1.0 : (double) wireBytes / pieceBytes;
+        logTime(String.format("Peer %d %s %d bytes of pieces as %d bytes on the wire (ratio %.3f) in %.2f s: %.1f KB/s of pieces, %.1f KB/s on the wire.",
+                peerID, direction, pieceBytes, wireBytes, ratio, seconds, pieceBytes / 1024.0 / seconds, wireBytes / 1024.0 / seconds));
+    }
+
+    // Message pipeline: the deepest each stage queue got, to tell whether its workers kept up
+    public synchronized void logPipelineStatistics(int protocolDepth, int diskDepth) {
+        logTime(String.format("Peer %d had at most %d messages waiting for protocol handling and %d piece reads and writes waiting for disk.",
+                peerID, protocolDepth, diskDepth));
+    }
+
+    // Differential update: pieces of the new version copied from the previous one instead of downloaded
+    public synchronized void logPiecesReused(String previousVersion, int reused, int numPieces, double seconds) {
+        logTime(String.format("Peer %d reused %d of %d pieces from %s in %.3f s and downloads the other %d.",
+                peerID, reused, numPieces, previousVersion, seconds, numPieces - reused));
+    }
+
+    public synchronized void logDuplicatesFilled(long pieces, long bytes) {
+        logTime(String.format("Peer %d filled %d pieces (%d bytes) from identical pieces instead of downloading them.",
+                peerID, pieces, bytes));
+    }
+
+    // Adaptive unchoke slots
+    public synchronized void logUploadSlots(int previous, int slots, double throughput, double utilization, String reason) {
+        logTime(String.format("Peer %d changed its preferred neighbor slots from %d to %d: uploading %.1f KB/s with writers busy %.0f%% of the time, %s.",
+                peerID, previous, slots, throughput / 1024.0, utilization * 100, reason));
+    }
+
+    // Pieces kept outside the output file are written to it once the download is complete
+    public synchronized void logFileAssembled(String storage, long bytes, double seconds) {
+        logTime(String.format("Peer %d assembled the file from %s storage in %.3f s: %.1f MB/s.", peerID, storage, seconds,
+                bytes / 1024.0 / 1024.0 / Math.max(seconds, 1e-9)));
+    }
+
+    // Bounded neighbor set
+    public synchronized void logNeighborDropped(int neighborID, boolean idle, int piecesExchanged) {
+        logTime(String.format("Peer %d dropped neighbor %d to try another peer: %s, %d pieces exchanged since the last check.",
+                peerID, neighborID, idle ? "neither side needed anything" : "least useful", piecesExchanged));
+    }
+
+    // Erasure coding throughput
+    public synchronized void logErasureStatistics(String operation, long bytes, double seconds) {
+        logTime(String.format("Peer %d %s %d bytes of pieces in %.3f s: %.1f MB/s.", peerID, operation, bytes, seconds,
+                bytes / 1024.0 / 1024.0 / Math.max(seconds, 1e-9)));
+    }
 }
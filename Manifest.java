@@ -0,0 +1,148 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * The SHA-256 hash of every piece of one version of the shared file. It is published together with Common.cfg, so a
+ * peer that still has an earlier version can tell which pieces of the new version it already holds: every piece of the
+ * old file whose hash appears in the manifest is copied into the new file before the peer connects to anyone, and only
+ * the remaining pieces are downloaded. Pieces are matched by content, not position, so a piece that moved is reused too.
+ *
+ * The file is text: the file size and piece size on the first line, then one hex hash per piece.
+ *
+ * Usage: java Manifest <file> <pieceSize> [<manifest>]
+ */
+public class Manifest {
+    private final long fileSize;
+    private final int pieceSize;
+    private final List<String> hashes;
+
+    public Manifest(long fileSize, int pieceSize, List<String> hashes) {
+        this.fileSize = fileSize;
+        this.pieceSize = pieceSize;
+        this.hashes = hashes;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Usage: java Manifest <file> <pieceSize> [<manifest>]");
+            return;
+        }
+        Path file = Path.of(args[0]);
+        Path output = args.length > 2 ? Path.of(args[2]) : Path.of(file.getFileName() + ".manifest");
+        long start = System.nanoTime();
+        Manifest manifest = compute(file, Integer.parseInt(args[1]));
+        manifest.write(output);
+        System.out.println(String.format("Wrote the hashes of %d pieces to %s in %.3f s", manifest.getNumPieces(), output,
+                (System.nanoTime() - start) / 1e9));
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public int getPieceSize() {
+        return pieceSize;
+    }
+
+    public int getNumPieces() {
+        return hashes.size();
+    }
+
+    public String getHash(int piece) {
+        return hashes.get(piece);
+    }
+
+    public static String hash(byte[] data, int length) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(data, 0, length);
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // Every JVM provides SHA-256
+        }
+    }
+
+    public static Manifest compute(Path file, int pieceSize) throws IOException {
+        List<String> hashes = new ArrayList<>();
+        long fileSize = forEachPiece(file, pieceSize, (piece, data, length) -> hashes.add(hash(data, length)));
+        return new Manifest(fileSize, pieceSize, hashes);
+    }
+
+    public static Manifest read(Path path) throws IOException {
+        List<String> lines = Files.readAllLines(path);
+        String[] header = lines.get(0).trim().split("\\s+");
+        List<String> hashes = new ArrayList<>();
+        for (String line : lines.subList(1, lines.size())) {
+            if (!line.isBlank()) {
+                hashes.add(line.trim());
+            }
+        }
+        return new Manifest(Long.parseLong(header[0]), Integer.parseInt(header[1]), hashes);
+    }
+
+    public void write(Path path) throws IOException {
+        List<String> lines = new ArrayList<>();
+        lines.add(fileSize + " " + pieceSize);
+        lines.addAll(hashes);
+        Files.write(path, lines);
+    }
+
+    // Copies every piece of the previous version that this version also contains into the new file and marks it in
+    // the bitmap, so the first BITFIELD already shows it. Returns how many pieces were reused.
+    public int reusePieces(Path previousVersion, FileManager fileManager, Bitmap bitmap) throws IOException {
+        // The same content may appear at several places in the new version
+        Map<String, List<Integer>> wanted = new HashMap<>();
+        for (int piece = 0; piece < hashes.size(); piece++) {
+            if (!bitmap.hasPiece(piece)) {
+                wanted.computeIfAbsent(hashes.get(piece), h -> new ArrayList<>()).add(piece);
+            }
+        }
+        int[] reused = {0};
+        forEachPiece(previousVersion, pieceSize, (oldPiece, data, length) -> {
+            List<Integer> pieces = wanted.remove(hash(data, length));
+            if (pieces == null) {
+                return;
+            }
+            byte[] copy = length == data.length ? data : Arrays.copyOf(data, length);
+            for (int piece : pieces) {
+                fileManager.writePiece(piece, copy);
+                bitmap.markPieceAsReceived(piece);
+                reused[0]++;
+            }
+        });
+        return reused[0];
+    }
+
+    private interface PieceConsumer {
+        void accept(int piece, byte[] data, int length) throws IOException;
+    }
+
+    // Reads the file sequentially one piece at a time and returns its size
+    private static long forEachPiece(Path file, int pieceSize, PieceConsumer consumer) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            byte[] data = new byte[pieceSize];
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            for (int piece = 0; (long) piece * pieceSize < size; piece++) {
+                buffer.clear();
+                while (buffer.hasRemaining() && channel.read(buffer) != -1) {
+                    // Keep reading until the piece is full or the file ends
+                }
+                consumer.accept(piece, data, buffer.position());
+            }
+            return size;
+        }
+    }
+}
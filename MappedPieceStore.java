@@ -0,0 +1,119 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Pieces stored in the output file itself, memory mapped in windows of whole pieces rather than as one buffer, since a
+ * single mapping cannot exceed 2 GB. Only the most recently used windows stay mapped, so files far larger than memory
+ * or address space limits work the same as small ones.
+ */
+public class MappedPieceStore implements PieceStore {
+    private static final long TARGET_WINDOW_SIZE = 64L * 1024 * 1024;
+    private static final int MAX_MAPPED_WINDOWS = 16;
+
+    private final String filePath;
+    private final long fileSize;
+    private final int pieceSize;
+    private final boolean readOnly;
+    // Pieces per window, so a piece never straddles two windows
+    private final int windowPieces;
+    // Opened once and kept for the life of the peer, so a long-running seed does not reopen the file for every piece
+    private FileChannel channel;
+    private final Map<Integer, MappedByteBuffer> windows = new LinkedHashMap<>(MAX_MAPPED_WINDOWS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, MappedByteBuffer> eldest) {
+            // The evicted window is unmapped once nothing references it any more, and flush() no longer sees it, so
+            // what was written to it is forced now
+            if (size() <= MAX_MAPPED_WINDOWS) {
+                return false;
+            }
+            if (!readOnly) {
+                eldest.getValue().force();
+            }
+            return true;
+        }
+    };
+
+    public MappedPieceStore(String filePath, long fileSize, int pieceSize, boolean readOnly) {
+        this.filePath = filePath;
+        this.fileSize = fileSize;
+        this.pieceSize = pieceSize;
+        this.readOnly = readOnly;
+        this.windowPieces = (int) Math.max(1, TARGET_WINDOW_SIZE / pieceSize);
+    }
+
+    private synchronized FileChannel getChannel() throws IOException {
+        if (channel == null) {
+            channel = readOnly
+                    ? FileChannel.open(Path.of(filePath), StandardOpenOption.READ)
+                    : FileChannel.open(Path.of(filePath), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        }
+        return channel;
+    }
+
+    // Mapping a window of a file that is still being downloaded grows the file to cover it, leaving the gaps sparse
+    private synchronized MappedByteBuffer getWindow(int windowIndex) throws IOException {
+        MappedByteBuffer window = windows.get(windowIndex);
+        if (window == null) {
+            long start = (long) windowIndex * windowPieces * pieceSize;
+            long length = Math.min((long) windowPieces * pieceSize, fileSize - start);
+            FileChannel.MapMode mode = readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE;
+            window = getChannel().map(mode, start, length);
+            windows.put(windowIndex, window);
+        }
+        return window;
+    }
+
+    // Sets the file to its full length. The file stays sparse, so this claims the size but not the blocks.
+    @Override
+    public void preallocate() throws IOException {
+        if (!readOnly && fileSize > 0 && getChannel().size() < fileSize) {
+            getChannel().write(ByteBuffer.allocate(1), fileSize - 1);
+        }
+    }
+
+    // Absolute gets and puts leave the window's position alone, so pieces can be read for several neighbors at once
+    @Override
+    public byte[] read(int piece, int length) throws IOException {
+        byte[] buffer = new byte[length];
+        getWindow(piece / windowPieces).get((piece % windowPieces) * pieceSize, buffer);
+        return buffer;
+    }
+
+    @Override
+    public void write(int piece, ByteBuffer data) throws IOException {
+        getWindow(piece / windowPieces).put((piece % windowPieces) * pieceSize, data, data.position(), data.remaining());
+    }
+
+    // A piece still being written to a window that was evicted in the meantime is only covered by forcing the channel
+    @Override
+    public synchronized void flush() throws IOException {
+        if (!readOnly) {
+            for (MappedByteBuffer window : windows.values()) {
+                window.force();
+            }
+            if (channel != null) {
+                channel.force(false);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        flush();
+        windows.clear();
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    @Override
+    public boolean isOutputFile() {
+        return true;
+    }
+}
@@ -0,0 +1,64 @@
+import java.nio.ByteBuffer;
+
+/*
+ * Pieces kept off-heap in direct buffers, for benchmarks that should not be bound by the disk and for relays that only
+ * pass a file on. The buffers hold whole pieces and stay below the 2 GB limit of a single buffer. Nothing reaches the
+ * disk until FileManager assembles the output file, so the pieces are lost if the peer dies before that.
+ */
+public class MemoryPieceStore implements PieceStore {
+    private static final long TARGET_CHUNK_SIZE = 64L * 1024 * 1024;
+
+    private final long fileSize;
+    private final int pieceSize;
+    // Pieces per chunk, so a piece never straddles two chunks
+    private final int chunkPieces;
+    private final ByteBuffer[] chunks;
+
+    public MemoryPieceStore(long fileSize, int pieceSize) {
+        this.fileSize = fileSize;
+        this.pieceSize = pieceSize;
+        this.chunkPieces = (int) Math.max(1, TARGET_CHUNK_SIZE / pieceSize);
+        long chunkSize = (long) chunkPieces * pieceSize;
+        this.chunks = new ByteBuffer[(int) ((fileSize + chunkSize - 1) / chunkSize)];
+    }
+
+    private synchronized ByteBuffer getChunk(int chunkIndex) {
+        if (chunks[chunkIndex] == null) {
+            long start = (long) chunkIndex * chunkPieces * pieceSize;
+            chunks[chunkIndex] = ByteBuffer.allocateDirect((int) Math.min((long) chunkPieces * pieceSize, fileSize - start));
+        }
+        return chunks[chunkIndex];
+    }
+
+    @Override
+    public void preallocate() {
+        for (int chunk = 0; chunk < chunks.length; chunk++) {
+            getChunk(chunk);
+        }
+    }
+
+    // Absolute gets and puts leave the buffer's position alone, so pieces can be read and written on several threads
+    @Override
+    public byte[] read(int piece, int length) {
+        byte[] buffer = new byte[length];
+        getChunk(piece / chunkPieces).get((piece % chunkPieces) * pieceSize, buffer);
+        return buffer;
+    }
+
+    @Override
+    public void write(int piece, ByteBuffer data) {
+        getChunk(piece / chunkPieces).put((piece % chunkPieces) * pieceSize, data, data.position(), data.remaining());
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public synchronized void close() {
+        // The buffers are freed once they are no longer referenced
+        for (int chunk = 0; chunk < chunks.length; chunk++) {
+            chunks[chunk] = null;
+        }
+    }
+}
@@ -1,12 +1,20 @@
 import java.io.*;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntPredicate;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 public class MessageManager {
 
@@ -28,7 +36,15 @@ public class MessageManager {
         HAVE(4),
         BITFIELD(5),
         REQUEST(6),
-        PIECE(7);
+        PIECE(7),
+        // Fast extensions, only sent on connections that negotiated Capability.FAST_EXTENSIONS
+        CANCEL(8),
+        HAVE_ALL(14), // No payload
+        HAVE_NONE(15), // No payload
+        REJECT_REQUEST(16),
+        BATCH_HAVE(17), // Payload is any number of 4 byte piece indices
+        // Peer exchange, only sent on connections that negotiated Capability.PEER_EXCHANGE
+        PEER_EXCHANGE(20); // Payload is any number of peer entries, see sendPeerExchange
 
         private final int value;
 
@@ -36,6 +52,10 @@ public class MessageManager {
             this.value = value;
         }
 
+        public int getValue() {
+            return value;
+        }
+
         public static MessageType fromValue(int value) {
             for (MessageType type : MessageType.values()) {
                 if (type.value == value) {
@@ -46,81 +66,331 @@ public class MessageManager {
         }
     }
 
-    public record ActualMessage(int length, MessageType type, byte[] payload) {}
+    // Optional features a peer advertises in the reserved bytes of its handshake. A feature is only used on a
+    // connection when both sides advertised it, so peers that leave the bytes zeroed keep the original protocol.
+    public enum Capability {
+        COMPRESSION(0), // PIECE payloads carry a codec byte and may be deflated
+        FAST_EXTENSIONS(1), // HAVE_ALL, HAVE_NONE, CANCEL, REJECT_REQUEST and BATCH_HAVE may be sent
+        PEER_EXCHANGE(2); // PEER_EXCHANGE may be sent
+
+        private final int bit;
+
+        Capability(int bit) {
+            this.bit = bit;
+        }
+
+        public int mask() {
+            return 1 << bit;
+        }
+    }
+
+    // Codec byte that follows the piece index in a PIECE payload once compression is negotiated
+    private static final byte CODEC_RAW = 0;
+    private static final byte CODEC_DEFLATE = 1;
+
+    // How long a new connection may take to send its handshake before it is dropped
+    private static final long HANDSHAKE_TIMEOUT_MS = 10000;
+    private static final long DRAIN_TIMEOUT_MS = 1000;
+    // Bounds on incoming payloads: HAVE, REQUEST, CANCEL and REJECT_REQUEST carry one piece index, the others nothing
+    private static final int MAX_CONTROL_PAYLOAD = 16;
+    private static final int MAX_PEER_EXCHANGE_ENTRIES = 4096;
+
+    // A PIECE read into a pooled receive buffer keeps its piece index (and codec) in payload and the piece in data.
+    // Everything else has data null.
+    public record ActualMessage(int length, MessageType type, byte[] payload, ByteBuffer data) {
+        public ActualMessage(int length, MessageType type, byte[] payload) {
+            this(length, type, payload, null);
+        }
+    }
 
 
     private final Peer peer;
-    private final Map<Integer, DataOutputStream> peerOutputStreams = new ConcurrentHashMap<>();
+    private final Map<Integer, OutboundQueue> outboundQueues = new ConcurrentHashMap<>();
     private final Map<Integer, BufferedInputStream> peerInputStreams = new ConcurrentHashMap<>();
+    // Capabilities enabled on each connection, i.e. the ones both this peer and the neighbor advertised
+    private final Map<Integer, Integer> peerCapabilities = new ConcurrentHashMap<>();
+    // How many CHOKE messages went to each neighbor, so a request can tell whether a choke came after it
+    private final Map<Integer, Integer> chokesSent = new ConcurrentHashMap<>();
+
+    // Piece statistics, used to compare the bytes of piece data against the bytes that actually crossed the wire
+    private final AtomicLong pieceBytesSent = new AtomicLong();
+    private final AtomicLong pieceWireBytesSent = new AtomicLong();
+    private final AtomicLong pieceBytesReceived = new AtomicLong();
+    private final AtomicLong pieceWireBytesReceived = new AtomicLong();
+    private final AtomicBoolean reportedDownloadStatistics = new AtomicBoolean();
+    private final AtomicBoolean reportedUploadStatistics = new AtomicBoolean();
+
+    // Direct buffers that raw PIECE payloads are read into, or null if ReceiveBuffers is 0
+    private final BufferPool receiveBuffers;
+    // Without -XX:MaxDirectMemorySize the JVM allows as much direct memory as heap. The pool takes at most this share.
+    private static final int RECEIVE_BUFFER_MEMORY_SHARE = 4;
 
     MessageManager(Peer peer) {
         this.peer = peer;
+        long fitting = Runtime.getRuntime().maxMemory() / RECEIVE_BUFFER_MEMORY_SHARE / peer.getPieceSize();
+        int buffers = (int) Math.min(peer.getReceiveBuffers(), fitting);
+        if (buffers < peer.getReceiveBuffers()) {
+            System.out.println("ReceiveBuffers lowered to " + buffers + " to fit in direct memory");
+        }
+        this.receiveBuffers = buffers > 0 ? new BufferPool(peer.getPieceSize(), buffers) : null;
     }
 
-    public synchronized void addOutputStream(Integer peerID, DataOutputStream out) {
-        peerOutputStreams.put(peerID, out);
+    public synchronized void addOutboundQueue(Integer peerID, OutboundQueue queue) {
+        outboundQueues.put(peerID, queue);
     }
 
     public synchronized void addInputStream(Integer peerID, BufferedInputStream in) {
         peerInputStreams.put(peerID, in);
     }
 
-    public synchronized void sendMessage(Integer peerID, byte[] content) {
-        DataOutputStream out = peerOutputStreams.get(peerID);
-        synchronized (out) {
+    public synchronized void removePeer(Integer peerID) {
+        OutboundQueue queue = outboundQueues.remove(peerID);
+        if (queue != null) {
+            queue.close();
+        }
+        peerInputStreams.remove(peerID);
+        peerCapabilities.remove(peerID);
+    }
+
+    // Holds room in the neighbor's outbound queue for the PIECE that answers a REQUEST. Called by the thread reading
+    // from that neighbor, so a neighbor that does not keep up only stops its own requests from being read.
+    public void reserveUpload(Integer peerID) throws InterruptedException {
+        OutboundQueue queue = outboundQueues.get(peerID);
+        if (queue != null) {
+            queue.reserveBulk();
+        }
+    }
+
+    // For a reserved upload that will not be sent after all
+    public void releaseUpload(Integer peerID) {
+        OutboundQueue queue = outboundQueues.get(peerID);
+        if (queue != null) {
+            queue.releaseBulk();
+        }
+    }
+
+    // Frames waiting in every neighbor's outbound queue, the depth of the network send stage
+    public int getOutboundQueueDepth() {
+        int depth = 0;
+        for (OutboundQueue queue : outboundQueues.values()) {
+            depth += queue.getQueueDepth();
+        }
+        return depth;
+    }
+
+    // How long the neighbor's writer has spent writing so far
+    public long getWriteNanos(Integer peerID) {
+        OutboundQueue queue = outboundQueues.get(peerID);
+        return queue == null ? 0 : queue.getWriteNanos();
+    }
+
+    public long getPieceWireBytesSent() {
+        return pieceWireBytesSent.get();
+    }
+
+    // Messages are only queued here. Each neighbor's writer sends them, so a slow neighbor never holds up the others.
+    public void sendMessage(Integer peerID, byte[] content) {
+        OutboundQueue queue = outboundQueues.get(peerID);
+        if (queue == null) {
+            return; // The neighbor disconnected
+        }
+        queue.enqueueControl(ByteBuffer.wrap(content));
+    }
+
+    private boolean sendFrame(Integer peerID, MessageType type, ByteBuffer... payload) {
+        return sendFrame(peerID, null, type, payload);
+    }
+
+    // PIECE frames wait in the bounded part of the queue, so this blocks while the neighbor is behind. Returns false if
+    // the neighbor disconnected and the frame was dropped. A frame for a given connection answers a REQUEST read from
+    // it. It takes the room reserved for it, is dropped as well once the neighbor reconnected, and is counted by the
+    // writer as an upload the scheduler dispatched.
+    private boolean sendFrame(Integer peerID, Connection connection, MessageType type, ByteBuffer... payload) {
+        OutboundQueue queue = outboundQueues.get(peerID);
+        if (queue == null || (connection != null && queue.getConnection() != connection)) {
+            return false; // The neighbor disconnected
+        }
+
+        int length = 1; // The type is included in the message length
+        for (ByteBuffer buffer : payload) {
+            length += buffer.remaining();
+        }
+        ByteBuffer[] frame = new ByteBuffer[payload.length + 1];
+        frame[0] = ByteBuffer.allocate(4 + 1).putInt(length).put((byte) type.value).flip();
+        System.arraycopy(payload, 0, frame, 1, payload.length);
+
+        FlightEvents.MessageSent event = new FlightEvents.MessageSent();
+        event.begin();
+        boolean queued = true;
+        if (type == MessageType.PIECE) {
             try {
-                out.write(content);
-                out.flush();
-            } catch (IOException ignored) {
+                queued = connection != null ? queue.enqueueReserved(frame) : queue.enqueueBulk(frame);
+            } catch (InterruptedException e) {
+                queued = false;
+                Thread.currentThread().interrupt();
             }
+        } else {
+            queue.enqueueControl(frame);
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.peerID = peer.getPeerInfo().getPeerID();
+            event.neighborID = peerID;
+            event.type = type.name();
+            event.pieceIndex = getPieceIndex(type, payload.length > 0 ? payload[0] : null);
+            event.bytes = 4 + length;
+            event.commit();
         }
+        return queued;
+    }
+
+    // The piece a message is about, read from the first 4 bytes of its payload, or -1 for other messages
+    private static int getPieceIndex(MessageType type, ByteBuffer payload) {
+        if (type != MessageType.HAVE && type != MessageType.REQUEST && type != MessageType.PIECE
+                && type != MessageType.CANCEL && type != MessageType.REJECT_REQUEST) {
+            return -1;
+        }
+        return payload != null && payload.remaining() >= 4 ? payload.getInt(payload.position()) : -1;
+    }
+
+    public boolean supports(Integer peerID, Capability capability) {
+        return (peerCapabilities.getOrDefault(peerID, 0) & capability.mask()) != 0;
+    }
+
+    public int getLocalCapabilities() {
+        int capabilities = 0;
+        if (peer.isCompressionEnabled()) {
+            capabilities |= Capability.COMPRESSION.mask();
+        }
+        if (peer.isFastExtensionsEnabled()) {
+            capabilities |= Capability.FAST_EXTENSIONS.mask();
+        }
+        if (peer.isPeerExchangeEnabled()) {
+            capabilities |= Capability.PEER_EXCHANGE.mask();
+        }
+        return capabilities;
+    }
+
+    public void reportDownloadStatistics() {
+        if (!reportedDownloadStatistics.compareAndSet(false, true)) {
+            return;
+        }
+        double seconds = (System.nanoTime() - peer.getStartTime()) / 1e9;
+        peer.getLogger().logTransferStatistics("downloaded", pieceBytesReceived.get(), pieceWireBytesReceived.get(), seconds);
+    }
 
+    public void reportUploadStatistics() {
+        if (reportedUploadStatistics.compareAndSet(false, true) && pieceBytesSent.get() > 0) {
+            double seconds = (System.nanoTime() - peer.getStartTime()) / 1e9;
+            peer.getLogger().logTransferStatistics("uploaded", pieceBytesSent.get(), pieceWireBytesSent.get(), seconds);
+        }
     }
 
     public synchronized void closeAll() throws IOException {
         System.out.println("Closing all sockets on this peer");
-        for(Map.Entry<Integer, DataOutputStream> connection: peerOutputStreams.entrySet()){
-            connection.getValue().close();
+        // Give the writers a moment to send what is queued, such as the HAVE that completed the swarm
+        for (OutboundQueue queue : outboundQueues.values()) {
+            try {
+                queue.drain(DRAIN_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        for (OutboundQueue queue : outboundQueues.values()) {
+            queue.close();
         }
         for(Map.Entry<Integer, BufferedInputStream> connection: peerInputStreams.entrySet()){
             connection.getValue().close();
         }
     }
 
-    public ActualMessage receiveActualMessage(Integer peerID) throws Exception {
-        BufferedInputStream in = peerInputStreams.get(peerID);
-        DataInputStream inputStream = new DataInputStream(in);
-        ActualMessage message = null;
-        while (!Thread.currentThread().isInterrupted() && message == null) {
-            try {
-                in.mark(5); // mark with enough room
-
-                int initialLength = inputStream.readInt();
-                if (inputStream.available() >= initialLength && initialLength > 0) {
-                    in.reset();
-
-                    int length = inputStream.readInt() - 1; // - 1 compensates for the inclusion of type in the message length
-                    int type = inputStream.readByte();
-                    byte[] payload = new byte[length];
-                    int bytesRead = in.read(payload);
-                    if (bytesRead != length) {
-                        throw new Exception(String.format("Failed to retrieve expected length: Got %d instead of %d for %d", bytesRead, length, peerID));
-                    }
-
-                    message = new ActualMessage(length, MessageType.fromValue(type), payload);
-                } else {
-                    in.reset();
-                }
-            } catch (SocketException | SocketTimeoutException ignored) {
-            } catch (EOFException e) {
-                return null;
-            } catch (Exception e) {
-                throw e;
+    // Reads from the given connection rather than whichever one is registered for the peer, since a neighbor that
+    // reconnects replaces its registration while the reader of the old connection may still be running
+    public ActualMessage receiveActualMessage(Integer peerID, Connection connection) throws Exception {
+        DataInputStream inputStream = new DataInputStream(connection.getInputStream());
+        try {
+            int length = inputStream.readInt() - 1; // - 1 compensates for the inclusion of type in the message length
+            if (length < 0) {
+                throw new IOException(String.format("Invalid message length %d from %d", length + 1, peerID));
+            }
+            FlightEvents.MessageReceived event = new FlightEvents.MessageReceived();
+            event.begin();
+            MessageType type = MessageType.fromValue(inputStream.readByte());
+            if (length > maxPayloadLength(type)) {
+                throw new IOException(String.format("Oversized %s of %d bytes from %d", type, length, peerID));
             }
+            ActualMessage message;
+            if (type == MessageType.PIECE && receiveBuffers != null) {
+                message = receivePiece(peerID, connection, inputStream, length);
+            } else {
+                byte[] payload = new byte[length];
+                inputStream.readFully(payload);
+                message = new ActualMessage(length, type, payload);
+            }
+            event.end();
+
+            if (event.shouldCommit()) {
+                event.peerID = peer.getPeerInfo().getPeerID();
+                event.neighborID = peerID;
+                event.type = String.valueOf(message.type());
+                event.pieceIndex = message.type() == null ? -1 : getPieceIndex(message.type(), ByteBuffer.wrap(message.payload()));
+                event.bytes = 4 + 1 + length;
+                event.commit();
+            }
+            return message;
+        } catch (EOFException e) {
+            return null;
         }
+    }
 
+    // The longest payload a well-formed message of the type can have, so a corrupt or hostile length is refused before
+    // anything is allocated for it
+    private long maxPayloadLength(MessageType type) {
+        switch (type) {
+            case PIECE:
+                return 4 + 1 + peer.getPieceSize(); // Index, codec byte and the raw piece
+            case BITFIELD:
+                return (peer.getNumPieces() + 7) / 8;
+            case BATCH_HAVE:
+                return 4L * peer.getNumPieces();
+            case PEER_EXCHANGE:
+                return (long) MAX_PEER_EXCHANGE_ENTRIES * (4 + 4 + 1 + 1 + 255);
+            default:
+                return MAX_CONTROL_PAYLOAD;
+        }
+    }
 
-        return message;
+    // Reads a PIECE's header onto the heap and its data straight into a pooled buffer. A deflated piece is read onto the
+    // heap as before, since it has to be inflated anyway.
+    private ActualMessage receivePiece(Integer peerID, Connection connection, DataInputStream inputStream, int length) throws Exception {
+        int headerLength = supports(peerID, Capability.COMPRESSION) ? 4 + 1 : 4;
+        byte[] header = new byte[Math.min(headerLength, length)];
+        inputStream.readFully(header);
+        int dataLength = length - header.length;
+        if (header.length < headerLength || dataLength > receiveBuffers.getBufferSize()
+                || (headerLength > 4 && header[4] != CODEC_RAW)) {
+            byte[] payload = Arrays.copyOf(header, length);
+            inputStream.readFully(payload, header.length, dataLength);
+            return new ActualMessage(length, MessageType.PIECE, payload);
+        }
+        ByteBuffer data = receiveBuffers.acquire();
+        try {
+            data.limit(dataLength);
+            connection.readFully(data);
+        } catch (Exception e) {
+            receiveBuffers.release(data);
+            throw e;
+        }
+        return new ActualMessage(length, MessageType.PIECE, header, data.flip());
+    }
+
+    // Returns a piece's data to the receive pool once it is stored or dropped. Data that did not come from the pool,
+    // which is always on the heap, is left alone.
+    public void releasePiece(ByteBuffer data) {
+        if (receiveBuffers != null && data.isDirect()) {
+            receiveBuffers.release(data);
+        }
     }
 
     public void sendActualMessage(Integer peerID, MessageType type) {
@@ -128,23 +398,7 @@ public class MessageManager {
     }
 
     public void sendActualMessage(Integer peerID, MessageType type, byte[] payload) {
-        int length = payload.length + 1;
-
-        byte[] lengthBytes = ByteBuffer
-                .allocate(4)
-                .putInt(length)
-                .array();
-
-        byte typeByte = (byte) type.value;
-
-        byte[] actualMessageBytes = ByteBuffer
-                .allocate(4 + 1 + payload.length)
-                .put(lengthBytes)
-                .put(typeByte)
-                .put(payload)
-                .array();
-
-        sendMessage(peerID, actualMessageBytes);
+        sendFrame(peerID, type, ByteBuffer.wrap(payload));
     }
 
     public void sendHave(Integer peerID, Integer index) {
@@ -154,9 +408,14 @@ public class MessageManager {
     }
 
     public void sendChoke(Integer peerID) {
+        chokesSent.merge(peerID, 1, Integer::sum);
         sendActualMessage(peerID, MessageType.CHOKE, new byte[]{});
     }
 
+    public int getChokesSent(Integer peerID) {
+        return chokesSent.getOrDefault(peerID, 0);
+    }
+
     public void sendUnchoke(Integer peerID) {
         sendActualMessage(peerID, MessageType.UNCHOKE, new byte[]{});
     }
@@ -165,6 +424,40 @@ public class MessageManager {
         return ByteBuffer.wrap(message.payload(), 0, 4).getInt();
     }
 
+    public void sendBatchHave(Integer peerID, List<Integer> indices) {
+        ByteBuffer buffer = ByteBuffer.allocate(4 * indices.size());
+        for (Integer index : indices) {
+            buffer.putInt(index);
+        }
+        sendActualMessage(peerID, MessageType.BATCH_HAVE, buffer.array());
+    }
+
+    public List<Integer> getBatchHave(ActualMessage message) {
+        List<Integer> indices = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.wrap(message.payload());
+        while (buffer.remaining() >= 4) {
+            indices.add(buffer.getInt());
+        }
+        return indices;
+    }
+
+    public void sendCancel(Integer peerID, Integer index) {
+        ByteBuffer buffer = ByteBuffer.allocate(4);  // 4 bytes for an int
+        buffer.putInt(index);
+        sendActualMessage(peerID, MessageType.CANCEL, buffer.array());
+    }
+
+    public void sendRejectRequest(Integer peerID, Integer index) {
+        ByteBuffer buffer = ByteBuffer.allocate(4);  // 4 bytes for an int
+        buffer.putInt(index);
+        sendActualMessage(peerID, MessageType.REJECT_REQUEST, buffer.array());
+    }
+
+    // CANCEL and REJECT_REQUEST carry the same single piece index as REQUEST
+    public int getIndex(ActualMessage message) {
+        return ByteBuffer.wrap(message.payload(), 0, 4).getInt();
+    }
+
     public void sendInterested(Integer peerID) {
         if (!peer.getNeighbors().getInterestingNeighbors().contains(peerID)) {
             sendActualMessage(peerID, MessageType.INTERESTED);
@@ -180,6 +473,8 @@ public class MessageManager {
     }
 
     public void sendRequest(Integer peerID, Integer index) {
+        peer.getNeighbors().addRequestedPiece(peerID, index);
+        peer.getTrace().record(TraceRecorder.Event.REQUEST_SENT, peerID, index, 0);
         ByteBuffer buffer = ByteBuffer.allocate(4);  // 4 bytes for an int
         buffer.putInt(index);
         sendActualMessage(peerID, MessageType.REQUEST, buffer.array());
@@ -189,66 +484,235 @@ public class MessageManager {
         return ByteBuffer.wrap(message.payload(), 0, 4).getInt();
     }
 
-    public void sendPiece(Integer peerID, Integer index, byte[] piece) {
-        ByteBuffer buffer = ByteBuffer.allocate(4);  // 4 bytes for an int
-        buffer.putInt(index);
+    // Pushes a piece the neighbor never requested, e.g. down a chain. It waits for room in the neighbor's queue like any
+    // other PIECE and never takes the room reserved for the answer to a REQUEST. Returns false if the neighbor
+    // disconnected before the piece was queued.
+    public boolean pushPiece(Integer peerID, Integer index, byte[] piece) {
+        return sendPiece(peerID, null, index, piece);
+    }
+
+    // Answers a REQUEST that arrived on the given connection, for an upload the scheduler dispatched. Returns false if
+    // that connection is gone, even if the neighbor already reconnected.
+    public boolean sendRequestedPiece(Integer peerID, Connection connection, Integer index, byte[] piece) {
+        return sendPiece(peerID, connection, index, piece);
+    }
 
-        byte[] bytes = ByteBuffer
-                .allocate(4 + piece.length)
-                .put(buffer.array())
-                .put(piece)
-                .array();
+    // The piece data goes out as its own buffer in the gathering write instead of being copied behind the header
+    private boolean sendPiece(Integer peerID, Connection connection, Integer index, byte[] piece) {
+        ByteBuffer header;
+        byte[] data;
+        if (supports(peerID, Capability.COMPRESSION)) {
+            // Pieces that do not shrink are sent raw so incompressible data never costs more than one extra byte
+            byte[] compressed = compress(piece);
+            boolean useCompressed = compressed != null;
+            data = useCompressed ? compressed : piece;
+            header = ByteBuffer.allocate(4 + 1).putInt(index).put(useCompressed ? CODEC_DEFLATE : CODEC_RAW).flip();
+        } else {
+            data = piece;
+            header = ByteBuffer.allocate(4).putInt(index).flip();
+        }
 
-        sendActualMessage(peerID, MessageType.PIECE, bytes);
+        pieceBytesSent.addAndGet(piece.length);
+        pieceWireBytesSent.addAndGet(header.remaining() + data.length);
+        return sendFrame(peerID, connection, MessageType.PIECE, header, ByteBuffer.wrap(data));
     }
 
-    public Pair<Integer, byte[]> getPiece(ActualMessage message) {
-        return new Pair<>(ByteBuffer.wrap(message.payload(), 0, 4).getInt(), Arrays.copyOfRange(message.payload(), 4, message.payload().length));
+    // The piece data is the pooled receive buffer when there is one, otherwise a view of the payload rather than a copy.
+    // Either way it goes back through releasePiece once it is no longer needed. A PIECE that is too short, names a piece
+    // that does not exist or does not carry exactly that piece's length comes back with index -1, so the caller drops
+    // it like any other bad piece. Inflating never produces more than the piece's length.
+    public Pair<Integer, ByteBuffer> getPiece(Integer peerID, ActualMessage message) throws DataFormatException {
+        byte[] payload = message.payload();
+        boolean compressed = supports(peerID, Capability.COMPRESSION);
+        ByteBuffer empty = ByteBuffer.allocate(0);
+        if (payload.length < (compressed ? 4 + 1 : 4)) {
+            return new Pair<>(-1, message.data() != null ? message.data() : empty);
+        }
+        int index = ByteBuffer.wrap(payload, 0, 4).getInt();
+        if (index < 0 || index >= peer.getNumPieces()) {
+            return new Pair<>(-1, message.data() != null ? message.data() : empty);
+        }
+        int pieceLength = peer.getFileManager().getPieceLength(index);
+
+        ByteBuffer data;
+        if (message.data() != null) {
+            data = message.data();
+        } else if (!compressed) {
+            data = ByteBuffer.wrap(payload, 4, payload.length - 4).slice();
+        } else if (payload[4] == CODEC_DEFLATE) {
+            data = ByteBuffer.wrap(decompress(payload, 5, payload.length - 5, pieceLength));
+        } else if (payload[4] == CODEC_RAW) {
+            data = ByteBuffer.wrap(payload, 5, payload.length - 5).slice();
+        } else {
+            throw new DataFormatException(String.format("Unknown codec %d for piece %d from %d", payload[4], index, peerID));
+        }
+        if (data.remaining() != pieceLength) {
+            return new Pair<>(-1, data);
+        }
+
+        pieceBytesReceived.addAndGet(data.remaining());
+        pieceWireBytesReceived.addAndGet(message.length() - 4);
+        return new Pair<>(index, data);
+    }
+
+    // Returns the deflated piece, or null when deflating would not make it any smaller
+    private byte[] compress(byte[] piece) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(piece);
+            deflater.finish();
+            byte[] output = new byte[piece.length];
+            int length = deflater.deflate(output);
+            if (!deflater.finished() || length >= piece.length) {
+                return null;
+            }
+            return Arrays.copyOf(output, length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private byte[] decompress(byte[] input, int offset, int length, int pieceLength) throws DataFormatException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(input, offset, length);
+            // The output is exactly one piece long, so a stream that inflates to more stops there unfinished
+            byte[] output = new byte[pieceLength];
+            int inflated = inflater.inflate(output);
+            if (!inflater.finished() || inflated != pieceLength) {
+                throw new DataFormatException(String.format("Inflated %d bytes instead of %d", inflated, pieceLength));
+            }
+            return output;
+        } finally {
+            inflater.end();
+        }
     }
 
     public void sendBitmap(Integer peerID) {
         sendActualMessage(peerID, MessageType.BITFIELD, peer.getBitmap().getBitfield());
     }
 
+    // Seeds and new peers can describe their pieces without a bitfield when the neighbor supports it
+    public void sendAvailability(Integer peerID) {
+        SuperSeeder superSeeder = peer.getSuperSeeder();
+        if (superSeeder != null && !superSeeder.isFinished()) {
+            // A super-seed starts out looking empty and reveals its pieces one HAVE at a time
+            if (supports(peerID, Capability.FAST_EXTENSIONS)) {
+                sendActualMessage(peerID, MessageType.HAVE_NONE);
+            } else {
+                sendActualMessage(peerID, MessageType.BITFIELD, new byte[0]);
+            }
+        } else if (supports(peerID, Capability.FAST_EXTENSIONS) && peer.getBitmap().hasEveryPiece()) {
+            sendActualMessage(peerID, MessageType.HAVE_ALL);
+        } else if (supports(peerID, Capability.FAST_EXTENSIONS) && peer.getBitmap().getNumPiecesHeld() == 0) {
+            sendActualMessage(peerID, MessageType.HAVE_NONE);
+        } else {
+            sendBitmap(peerID);
+        }
+    }
+
     public Bitmap getBitmap(ActualMessage message) {
-        return new Bitmap(message.payload(), peer.getNumPieces());
+        return new Bitmap(message.payload(), peer.getNumPieces(), peer.getNumSourcePieces());
+    }
+
+    // Each entry is the peer ID (4 bytes), port (4 bytes), whether it is complete (1 byte), the hostname length (1 byte)
+    // and the UTF-8 hostname
+    public void sendPeerExchange(Integer peerID, List<Pair<Peer.PeerInfo, Boolean>> entries) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            for (Pair<Peer.PeerInfo, Boolean> entry : entries) {
+                byte[] hostname = entry.first.getHostname().getBytes(StandardCharsets.UTF_8);
+                out.writeInt(entry.first.getPeerID());
+                out.writeInt(entry.first.getPort());
+                out.writeByte(entry.second ? 1 : 0);
+                out.writeByte(hostname.length);
+                out.write(hostname);
+            }
+        } catch (IOException ignored) {
+        }
+        sendActualMessage(peerID, MessageType.PEER_EXCHANGE, bytes.toByteArray());
+    }
+
+    public List<Pair<Peer.PeerInfo, Boolean>> getPeerExchange(ActualMessage message) {
+        List<Pair<Peer.PeerInfo, Boolean>> entries = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.wrap(message.payload());
+        while (buffer.remaining() >= 10) {
+            Peer.PeerInfo info = new Peer.PeerInfo();
+            info.setPeerID(buffer.getInt());
+            info.setPort(buffer.getInt());
+            boolean complete = buffer.get() == 1;
+            byte[] hostname = new byte[buffer.get() & 0xFF];
+            if (buffer.remaining() < hostname.length) {
+                break;
+            }
+            buffer.get(hostname);
+            info.setHostname(new String(hostname, StandardCharsets.UTF_8));
+            entries.add(new Pair<>(info, complete));
+        }
+        return entries;
     }
 
     public void sendHandshakeMessage(Integer peerID) {
         sendMessage(peerID, getHandshakeMessage());
     }
 
-    public int receivedValidHandshakeMessage(Integer peerID, int... validPeerIDs){
-        BufferedInputStream bufferedInputStream = peerInputStreams.get(peerID);
-        DataInputStream in = new DataInputStream(bufferedInputStream);
-        while (!Thread.currentThread().isInterrupted()) {
-            byte[] buffer = new byte[32];
+    public int receivedValidHandshakeMessage(Integer peerID, int... validPeerIDs) {
+        Pair<Integer, Integer> handshake = receiveHandshake(peer.getNeighbors().getConnectedPeers().get(peerID),
+                id -> Arrays.stream(validPeerIDs).anyMatch(validID -> validID == id));
+        if (handshake == null) {
+            return -1;
+        }
+        setCapabilities(handshake.first, handshake.second);
+        return handshake.first;
+    }
+
+    // The capabilities both sides of a connection support. Set once the connection is the neighbor's current one, so a
+    // neighbor that connects again cannot change what its old connection still uses.
+    public void setCapabilities(int peerID, int capabilities) {
+        peerCapabilities.put(peerID, capabilities);
+    }
+
+    // Reads the handshake straight from a connection. Inbound connections use this before they are bound to a peer,
+    // since the peer ID in the handshake is the only thing that identifies them. Returns the peer ID and the
+    // capabilities both sides support, or null if the handshake is invalid.
+    public Pair<Integer, Integer> receiveHandshake(Connection connection, IntPredicate isValidPeer) {
+        // Connections are blocking channels without a read timeout, so one that does not send its handshake in time is
+        // closed from a watchdog instead
+        Future<?> watchdog = peer.getExecutor().submit(() -> {
             try {
-                if (in.available() >= 32) {
-                    int bytesRead = in.read(buffer);
-                    boolean correctLength = bytesRead == 32;
-                    String header = getHeaderFromHandshakeMessage(buffer);
-                    boolean correctHeader = Peer.PeerInfo.HEADER.equals(header);
-
-                    // A valid Peer is considered a peer that is expected for a connection
-                    int peerFromHandshake = getPeerIDFromHandshake(buffer);
-                    boolean validPeer = Arrays.stream(validPeerIDs).anyMatch(id -> id == peerFromHandshake);
-
-                    System.out.println(peerID + " Valid connection values: " + header + " " + peerFromHandshake);
-                    return correctLength && correctHeader && validPeer ? peerFromHandshake : -1;
-                }
-            } catch (SocketTimeoutException ignored) {
-            } catch (IOException e) {
-                return -1;
+                TimeUnit.MILLISECONDS.sleep(HANDSHAKE_TIMEOUT_MS);
+                connection.close();
+            } catch (InterruptedException | IOException ignored) {
             }
+        });
+        try {
+            DataInputStream in = new DataInputStream(connection.getInputStream());
+            byte[] buffer = new byte[32];
+            in.readFully(buffer);
+            String header = getHeaderFromHandshakeMessage(buffer);
+            boolean correctHeader = Peer.PeerInfo.HEADER.equals(header);
+
+            // A valid Peer is considered a peer that is expected for a connection
+            int peerFromHandshake = getPeerIDFromHandshake(buffer);
+            boolean validPeer = isValidPeer.test(peerFromHandshake);
+
+            int capabilities = getLocalCapabilities() & getCapabilitiesFromHandshake(buffer);
+
+            System.out.println(peerFromHandshake + " Valid connection values: " + header + " " + peerFromHandshake + " capabilities " + capabilities);
+            return correctHeader && validPeer ? new Pair<>(peerFromHandshake, capabilities) : null;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            watchdog.cancel(true);
         }
-        return -1;
     }
 
     public byte[] getHandshakeMessage() {
         byte[] strBytes = Peer.PeerInfo.HEADER.getBytes(StandardCharsets.UTF_8);
 
-        byte[] zeroBytes = ByteBuffer.allocate(10).array();
+        // The first 6 reserved bytes stay zero, the last 4 hold the capability bits this peer advertises
+        byte[] zeroBytes = ByteBuffer.allocate(10).putInt(6, getLocalCapabilities()).array();
 
         ByteBuffer buffer = ByteBuffer.allocate(4);
         buffer.putInt(peer.getPeerInfo().getPeerID());
@@ -267,6 +731,10 @@ public class MessageManager {
         return new String(incomingMessage, 0, 18, StandardCharsets.UTF_8);
     }
 
+    public int getCapabilitiesFromHandshake(byte[] incomingMessage) {
+        return ByteBuffer.wrap(incomingMessage, 24, 4).getInt();
+    }
+
     public int getPeerIDFromHandshake(byte[] incomingMessage) {
         return ByteBuffer.wrap(incomingMessage, 28, 4).getInt();
     }
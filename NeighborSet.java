@@ -0,0 +1,200 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * A bounded, changing set of neighbors for swarms too large for everyone to connect to everyone. A peer keeps at most
+ * MaxNeighbors connections: while it still needs pieces it dials random peers listed before it in PeerInfo.cfg until
+ * its slots are full, and it refuses inbound connections once they are. Every NeighborChurnInterval a full peer drops
+ * its least useful neighbor, first one that neither side wants anything from, otherwise the one that exchanged the
+ * fewest pieces, and the free slot goes to a new random peer. A peer that already has the file only drops neighbors
+ * with nothing to exchange, so it never cuts off a peer it is serving.
+ *
+ * Without a full mesh no peer learns every other peer's bitfield, so a peer no longer waits for the whole swarm. Once it
+ * has the file it leaves after NeighborLinger seconds in which every neighbor had the file too. Peers that still need
+ * pieces keep dialing, so a peer that lingers is likely to be found by any that are left.
+ */
+public class NeighborSet implements Runnable {
+    private static final long FILL_INTERVAL_MS = 200;
+
+    private final Peer peer;
+    private final int maxNeighbors;
+    private final long churnIntervalNanos;
+    private final long lingerNanos;
+    // Peers listed before this one, the only ones it dials, so two peers never dial each other
+    private final List<Peer.PeerInfo> candidates = new ArrayList<>();
+    private final Set<Integer> dialing = ConcurrentHashMap.newKeySet();
+    // Inbound peers admitted whose connections are not registered yet. Like peers being dialed, they hold a slot.
+    private final Set<Integer> admitted = new HashSet<>();
+    // When each peer was last dialed or dropped, so the same peer is not tried again right away
+    private final Map<Integer, Long> lastTried = new ConcurrentHashMap<>();
+    private final Map<Integer, Long> connectedSince = new ConcurrentHashMap<>();
+    // Pieces exchanged with each neighbor, in either direction, since the last churn
+    private final Map<Integer, Integer> piecesExchanged = new ConcurrentHashMap<>();
+    private volatile boolean everConnected = false;
+    private volatile long lastIncompleteNeighbor = System.nanoTime();
+
+    public NeighborSet(Peer peer, List<Peer.PeerInfo> peers, int maxNeighbors, int churnIntervalSeconds, int lingerSeconds) {
+        this.peer = peer;
+        this.maxNeighbors = maxNeighbors;
+        this.churnIntervalNanos = TimeUnit.SECONDS.toNanos(churnIntervalSeconds);
+        this.lingerNanos = TimeUnit.SECONDS.toNanos(lingerSeconds);
+        for (Peer.PeerInfo info : peers) {
+            if (info.getPeerID() == peer.getPeerInfo().getPeerID()) {
+                break;
+            }
+            candidates.add(info);
+        }
+    }
+
+    // Whether an inbound connection from the peer fits in the neighbor set. If it does, the slot is held for it until its
+    // connection is registered, so two peers connecting at once cannot both take the last slot.
+    public synchronized boolean admit(int peerID) {
+        Map<Integer, Connection> connected = peer.getNeighbors().getConnectedPeers();
+        if (connected.containsKey(peerID) || admitted.contains(peerID)) {
+            return true;
+        }
+        if (connected.size() + admitted.size() + dialing.size() >= maxNeighbors) {
+            return false;
+        }
+        admitted.add(peerID);
+        return true;
+    }
+
+    public synchronized void onConnected(int peerID) {
+        admitted.remove(peerID);
+        everConnected = true;
+        connectedSince.put(peerID, System.nanoTime());
+        piecesExchanged.put(peerID, 0);
+    }
+
+    public void onDisconnected(int peerID) {
+        connectedSince.remove(peerID);
+        piecesExchanged.remove(peerID);
+    }
+
+    public void onPieceExchanged(int peerID) {
+        piecesExchanged.computeIfPresent(peerID, (id, count) -> count + 1);
+    }
+
+    // With the file and no neighbor lacking it for the linger time. A peer that never had a neighbor waits for one.
+    public boolean canLeave() {
+        if (!peer.getBitmap().hasAllPieces()) {
+            return false;
+        }
+        long now = System.nanoTime();
+        Set<Integer> complete = peer.getNeighbors().getHasCompleteFileNeighbors();
+        for (Integer neighborID : peer.getNeighbors().getConnectedPeers().keySet()) {
+            if (!complete.contains(neighborID)) {
+                lastIncompleteNeighbor = now;
+                return false;
+            }
+        }
+        return everConnected && now - lastIncompleteNeighbor >= lingerNanos;
+    }
+
+    @Override
+    public void run() {
+        long lastChurn = System.nanoTime();
+        while (!Thread.currentThread().isInterrupted() && peer.getServerSocket().isOpen() && !peer.isSwarmComplete()) {
+            fill();
+            if (System.nanoTime() - lastChurn >= churnIntervalNanos) {
+                churn();
+                lastChurn = System.nanoTime();
+            }
+            try {
+                TimeUnit.MILLISECONDS.sleep(FILL_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        if (peer.isSwarmComplete()) {
+            peer.shutdown();
+        }
+    }
+
+    // Dials random candidates for the free slots, as long as this peer still needs pieces. Synchronized with admit, so
+    // both see the slots the other took.
+    private synchronized void fill() {
+        if (peer.getBitmap().hasAllPieces()) {
+            return;
+        }
+        Map<Integer, Connection> connected = peer.getNeighbors().getConnectedPeers();
+        int free = maxNeighbors - connected.size() - admitted.size() - dialing.size();
+        if (free <= 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        List<Peer.PeerInfo> available = new ArrayList<>();
+        for (Peer.PeerInfo info : candidates) {
+            Long tried = lastTried.get(info.getPeerID());
+            if (!connected.containsKey(info.getPeerID()) && !dialing.contains(info.getPeerID())
+                    && (tried == null || now - tried >= churnIntervalNanos)) {
+                available.add(info);
+            }
+        }
+        Collections.shuffle(available);
+        for (Peer.PeerInfo info : available.subList(0, Math.min(free, available.size()))) {
+            dialing.add(info.getPeerID());
+            lastTried.put(info.getPeerID(), now);
+            peer.getExecutor().submit(new Peer.SafeRunnable(() -> {
+                try {
+                    peer.connectOnce(info);
+                } finally {
+                    dialing.remove(info.getPeerID());
+                }
+            }));
+        }
+    }
+
+    // Drops the least useful neighbor of a full neighbor set to make room for a new one
+    private void churn() {
+        Neighbors neighbors = peer.getNeighbors();
+        Map<Integer, Connection> connected = neighbors.getConnectedPeers();
+        if (connected.size() < maxNeighbors) {
+            resetCounts();
+            return;
+        }
+        long now = System.nanoTime();
+        boolean complete = peer.getBitmap().hasAllPieces();
+        List<Integer> settled = new ArrayList<>();
+        for (Integer neighborID : connected.keySet()) {
+            Long since = connectedSince.get(neighborID);
+            // A neighbor gets one full interval to prove itself
+            if (since != null && now - since >= churnIntervalNanos && neighbors.getSuccessfullyConnectedPeers().containsKey(neighborID)) {
+                settled.add(neighborID);
+            }
+        }
+        Map<Integer, Boolean> idle = new HashMap<>();
+        for (Integer neighborID : settled) {
+            Bitmap bitfield = neighbors.getPeerBitfield(neighborID);
+            idle.put(neighborID, (bitfield == null || !peer.isInterestedIn(bitfield))
+                    && !neighbors.getInterestedNeighbors().contains(neighborID));
+        }
+        Integer victim = settled.stream()
+                .filter(neighborID -> !complete || idle.get(neighborID))
+                .min(Comparator.comparing((Integer neighborID) -> !idle.get(neighborID))
+                        .thenComparing(neighborID -> piecesExchanged.getOrDefault(neighborID, 0)))
+                .orElse(null);
+        int exchanged = victim == null ? 0 : piecesExchanged.getOrDefault(victim, 0);
+        resetCounts();
+        Connection connection = victim == null ? null : connected.get(victim);
+        if (connection != null) {
+            lastTried.put(victim, now);
+            peer.getLogger().logNeighborDropped(victim, idle.get(victim), exchanged);
+            peer.disconnect(victim, connection);
+        }
+    }
+
+    private void resetCounts() {
+        piecesExchanged.replaceAll((neighborID, count) -> 0);
+    }
+}
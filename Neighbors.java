@@ -1,4 +1,3 @@
-import java.net.Socket;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
@@ -6,7 +5,7 @@ import java.util.stream.Collectors;
 
 public class Neighbors {
     private Peer peer;
-    private final Map<Integer, Socket> connectedPeers = new ConcurrentHashMap<>();
+    private final Map<Integer, Connection> connectedPeers = new ConcurrentHashMap<>();
 
     public synchronized Map<Integer, Boolean> getSuccessfullyConnectedPeers() {
         return successfullyConnectedPeers;
@@ -17,28 +16,80 @@ public class Neighbors {
     private final Map<Integer, Integer> numOfPiecesByPeer = new ConcurrentHashMap<>();
     // This set tracks whether the current peer is already interested in any neighbors
     private final Map<Integer, String> interestingNeighbors = new ConcurrentHashMap<>();
-    private final Set<Integer> preferredNeighbors = new HashSet<>();
-    private final Set<Integer> interestedNeighbors = new HashSet<>();
-    private final Set<Integer> chokedStatus = new HashSet<>();
-    private final Set<Integer> hasCompleteFileNeighbors = new HashSet<>();
+    // Replaced as a whole each round, so a neighbor that stays preferred is never seen as choked in between
+    private volatile Set<Integer> preferredNeighbors = Set.of();
+    // Read without the lock by the stage workers, the upload scheduler and the snub detector through the getters below
+    private final Set<Integer> interestedNeighbors = ConcurrentHashMap.newKeySet();
+    private final Set<Integer> chokedStatus = ConcurrentHashMap.newKeySet();
+    private final Set<Integer> hasCompleteFileNeighbors = ConcurrentHashMap.newKeySet();
+    // Pieces this peer has requested from each neighbor and not yet received
+    private final Map<Integer, Set<Integer>> requestedPieces = new ConcurrentHashMap<>();
+    // HAVE messages waiting to be sent as one BATCH_HAVE to neighbors that support the fast extensions
+    private final Map<Integer, List<Integer>> pendingHaves = new ConcurrentHashMap<>();
     private volatile Integer optimisticNeighbor = null;
 
     Neighbors(Peer peer) {
         this.peer = peer;
+        if (peer.hasBoundedNeighbors()) {
+            return; // State is only set up for peers that connect, see addNeighbor
+        }
 
         for(Peer.PeerInfo info : peer.getAllPeerInfo()) {
             if(peer.getPeerInfo().getPeerID() == info.getPeerID()) {
                 continue; // skip current peer
             }
-            interestingNeighbors.put(info.getPeerID(), "");
-            peerBitmaps.put(info.getPeerID(), new Bitmap(new byte[0], peer.getNumPieces()));
-            chokedStatus.add(info.getPeerID()); // all neighbors start choked
-            numOfPiecesByPeer.put(info.getPeerID(), 0);
+            addPeer(info.getPeerID());
+        }
+    }
+
+    // Sets up the tracking state for a peer, either from PeerInfo.cfg or discovered while running
+    public synchronized void addPeer(int peerID) {
+        interestingNeighbors.put(peerID, "");
+        peerBitmaps.put(peerID, new Bitmap(new byte[0], peer.getNumPieces(), peer.getNumSourcePieces()));
+        chokedStatus.add(peerID); // all neighbors start choked
+        numOfPiecesByPeer.put(peerID, 0);
+        requestedPieces.put(peerID, ConcurrentHashMap.newKeySet());
+        pendingHaves.put(peerID, new ArrayList<>());
+    }
+
+    private void forgetPeer(int peerID) {
+        interestingNeighbors.remove(peerID);
+        peerBitmaps.remove(peerID);
+        chokedStatus.remove(peerID);
+        numOfPiecesByPeer.remove(peerID);
+        requestedPieces.remove(peerID);
+        pendingHaves.remove(peerID);
+    }
+
+    public synchronized void addNeighbor(int neighborID, Connection connection) {
+        if (!peerBitmaps.containsKey(neighborID)) {
+            addPeer(neighborID);
         }
+        connectedPeers.put(neighborID, connection);
     }
 
-    public synchronized void addNeighbor(int neighborID, Socket socket) {
-        connectedPeers.put(neighborID, socket);
+    // Forgets everything tied to a closed connection, so the peer starts over if it connects again. Whether it had the
+    // complete file is kept, since a peer that finished and left still counts towards the swarm being complete. Returns
+    // the pieces that were requested from it and are free to be requested elsewhere now.
+    public synchronized Set<Integer> removeNeighbor(int neighborID, Connection connection) {
+        if (!connectedPeers.remove(neighborID, connection)) {
+            return Set.of();
+        }
+        Set<Integer> released = new HashSet<>(requestedPieces.get(neighborID));
+        successfullyConnectedPeers.remove(neighborID);
+        interestedNeighbors.remove(neighborID);
+        preferredNeighbors = preferredNeighbors.stream()
+                .filter(id -> id != neighborID)
+                .collect(Collectors.toUnmodifiableSet());
+        if (Objects.equals(optimisticNeighbor, neighborID)) {
+            optimisticNeighbor = null;
+        }
+        if (peer.hasBoundedNeighbors()) {
+            forgetPeer(neighborID); // Most peers of a large swarm are never neighbors again
+        } else {
+            addPeer(neighborID);
+        }
+        return released;
     }
 
     public synchronized void addHandshakedNeighbor(int neighborID) {
@@ -46,7 +97,11 @@ public class Neighbors {
     }
 
     public synchronized void updatePeerBitfield(int peerID, Bitmap bitmap) {
-        peerBitmaps.get(peerID).getBitset().or(bitmap.getBitset());
+        peerBitmaps.get(peerID).or(bitmap);
+        if (!peerBitmaps.get(peerID).hasAllPieces()) {
+            // A peer that left with the file may rejoin without it
+            hasCompleteFileNeighbors.remove(peerID);
+        }
         updateCompleteFileNeighbors();
     }
 
@@ -59,13 +114,12 @@ public class Neighbors {
         return peerBitmaps.get(peerID);
     }
 
-    public Map<Integer, Socket> getConnectedPeers() {
+    public Map<Integer, Connection> getConnectedPeers() {
         return connectedPeers;
     }
 
     public synchronized void updatePreferredNeighbors(List<Integer> newPreferred) {
-        preferredNeighbors.clear();
-        preferredNeighbors.addAll(newPreferred);
+        preferredNeighbors = Set.copyOf(newPreferred);
     }
 
     public boolean isPreferredNeighbor(int peerID) {
@@ -84,6 +138,11 @@ public class Neighbors {
         this.optimisticNeighbor = optimisticNeighbor;
     }
 
+    // Whether this peer currently allows the neighbor to download, either as a preferred or optimistic neighbor
+    public boolean isUnchokedNeighbor(int peerID) {
+        return isPreferredNeighbor(peerID) || Objects.equals(optimisticNeighbor, peerID);
+    }
+
     public Set<Integer> getInterestedNeighbors() {
         return interestedNeighbors;
     }
@@ -130,13 +189,70 @@ public class Neighbors {
     }
 
     public synchronized void resetNumOfPiecesByPeer() {
-        numOfPiecesByPeer.clear();
-        for(Peer.PeerInfo info : peer.getAllPeerInfo()) {
-            if(peer.getPeerInfo().getPeerID() == info.getPeerID()) {
-                continue; // skip current peer
-            }
-            numOfPiecesByPeer.put(info.getPeerID(), 0);
+        numOfPiecesByPeer.replaceAll((peerID, count) -> 0);
+    }
+
+    // A source of pieces that is not a neighbor, such as the origin, whose requests count like a neighbor's
+    public void addRequestSource(int sourceID) {
+        requestedPieces.put(sourceID, ConcurrentHashMap.newKeySet());
+    }
+
+    // With a bounded neighbor set, a neighbor that was dropped has no state left, but its last messages may still be
+    // handled, so these tolerate unknown peers
+    public void addRequestedPiece(Integer peerID, Integer index) {
+        requestedPieces.getOrDefault(peerID, new HashSet<>()).add(index);
+    }
+
+    public boolean removeRequestedPiece(Integer peerID, Integer index) {
+        return requestedPieces.getOrDefault(peerID, Collections.emptySet()).remove(index);
+    }
+
+    public boolean isRequestedFrom(Integer peerID, Integer index) {
+        return requestedPieces.getOrDefault(peerID, Collections.emptySet()).contains(index);
+    }
+
+    public boolean hasRequestedPieces(Integer peerID) {
+        return !requestedPieces.getOrDefault(peerID, Collections.emptySet()).isEmpty();
+    }
+
+    public int getNumRequestedPieces(Integer peerID) {
+        return requestedPieces.getOrDefault(peerID, Collections.emptySet()).size();
+    }
+
+    public void clearRequestedPieces(Integer peerID) {
+        requestedPieces.getOrDefault(peerID, Collections.emptySet()).clear();
+    }
+
+    // Removes and returns everything requested from the neighbor, so it can be requested elsewhere
+    public synchronized Set<Integer> takeRequestedPieces(Integer peerID) {
+        Set<Integer> indices = requestedPieces.getOrDefault(peerID, Collections.emptySet());
+        Set<Integer> taken = new HashSet<>(indices);
+        indices.removeAll(taken);
+        return taken;
+    }
+
+    // All pieces that are currently requested from any neighbor
+    public BitSet getAllRequestedPieces() {
+        BitSet requested = new BitSet(); // Grows with the highest requested piece instead of covering the whole file
+        for (Set<Integer> indices : requestedPieces.values()) {
+            indices.forEach(requested::set);
         }
+        return requested;
+    }
+
+    // The pieces currently requested from the neighbor
+    public BitSet getRequestedPieces(Integer peerID) {
+        BitSet requested = new BitSet();
+        requestedPieces.getOrDefault(peerID, Collections.emptySet()).forEach(requested::set);
+        return requested;
+    }
+
+    // Neighbors, other than the given one, that still owe this peer the piece
+    public List<Integer> getOtherRequesters(Integer peerID, Integer index) {
+        return requestedPieces.entrySet().stream()
+                .filter(entry -> !entry.getKey().equals(peerID) && entry.getValue().contains(index))
+                .map(Map.Entry::getKey)
+                .toList();
     }
 
     public Set<Integer> getHasCompleteFileNeighbors() {
@@ -159,7 +275,12 @@ public class Neighbors {
     }
 
     public synchronized void sendHaveMessages(Integer pieceIndex) {
-        for(Map.Entry<Integer, Socket> connection : connectedPeers.entrySet()) {
+        sendHaveMessages(List.of(pieceIndex));
+    }
+
+    // Pieces announced together are queued under one lock, so a neighbor with fast extensions gets them in one BATCH_HAVE
+    public synchronized void sendHaveMessages(List<Integer> pieceIndices) {
+        for(Map.Entry<Integer, Connection> connection : connectedPeers.entrySet()) {
             Integer peerID = connection.getKey();
 
             if (peerID == peer.getPeerInfo().getPeerID()){ // Skip the current peer
@@ -170,12 +291,35 @@ public class Neighbors {
                 continue;
             }
 
-            peer.getMessageManager().sendHave(peerID, pieceIndex);
+            if (peer.getMessageManager().supports(peerID, MessageManager.Capability.FAST_EXTENSIONS)) {
+                pendingHaves.get(peerID).addAll(pieceIndices);
+            } else {
+                for (Integer pieceIndex : pieceIndices) {
+                    peer.getMessageManager().sendHave(peerID, pieceIndex);
+                }
+            }
+        }
+    }
+
+    // Sends the HAVE messages collected since the last flush, one BATCH_HAVE per neighbor
+    public synchronized void flushHaveMessages() {
+        for (Map.Entry<Integer, List<Integer>> entry : pendingHaves.entrySet()) {
+            List<Integer> indices = entry.getValue();
+            if (indices.isEmpty()) {
+                continue;
+            }
+
+            if (indices.size() == 1) {
+                peer.getMessageManager().sendHave(entry.getKey(), indices.get(0));
+            } else {
+                peer.getMessageManager().sendBatchHave(entry.getKey(), indices);
+            }
+            indices.clear();
         }
     }
 
     public synchronized void sendNotInterestedMessages() {
-        for(Map.Entry<Integer, Socket> connection : connectedPeers.entrySet()) {
+        for(Map.Entry<Integer, Connection> connection : connectedPeers.entrySet()) {
             Integer peerID = connection.getKey();
 
             if (peerID == peer.getPeerInfo().getPeerID()){ // Skip the current peer
@@ -186,12 +330,35 @@ public class Neighbors {
                 continue;
             }
 
-            if (!peer.getBitmap().containsInterestedPieces(getPeerBitfield(peerID))) {
+            if (!peer.isInterestedIn(getPeerBitfield(peerID))) {
                 peer.getMessageManager().sendNotInterested(peerID);
             }
         }
     }
 
+    // Tells every neighbor that supports peer exchange about a peer this peer just learned of
+    public synchronized void sendPeerExchange(Peer.PeerInfo discovered, boolean complete) {
+        for (Integer peerID : successfullyConnectedPeers.keySet()) {
+            if (peerID == discovered.getPeerID() || !peer.getMessageManager().supports(peerID, MessageManager.Capability.PEER_EXCHANGE)) {
+                continue;
+            }
+            peer.getMessageManager().sendPeerExchange(peerID, List.of(new MessageManager.Pair<>(discovered, complete)));
+        }
+    }
+
+    // Every known peer with a listening port, including this one, for a neighbor that just connected
+    public List<MessageManager.Pair<Peer.PeerInfo, Boolean>> getPeerExchangeEntries(int neighborID) {
+        List<MessageManager.Pair<Peer.PeerInfo, Boolean>> entries = new ArrayList<>();
+        entries.add(new MessageManager.Pair<>(peer.getPeerInfo(), peer.getBitmap().hasAllPieces()));
+        for (Peer.PeerInfo info : peer.getAllPeerInfo()) {
+            if (info.getPeerID() == neighborID || info.getPeerID() == peer.getPeerInfo().getPeerID() || info.getPort() == 0) {
+                continue;
+            }
+            entries.add(new MessageManager.Pair<>(info, hasCompleteFileNeighbors.contains(info.getPeerID())));
+        }
+        return entries;
+    }
+
     public Set<Integer> allChokedAndInterestedNeighbors(){
         Set<Integer> unchoked = new HashSet<>(preferredNeighbors);
         unchoked.add(optimisticNeighbor);
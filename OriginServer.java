@@ -0,0 +1,105 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+ * Minimal HTTP origin for trying out web seeding: serves one file at every path and answers single range requests
+ * with 206 Partial Content, the way a CDN or plain web server would.
+ *
+ *     java OriginServer <port> <file>
+ *
+ * Point the peers at it with OriginURL http://<host>:<port>/<anything> in Common.cfg.
+ */
+public class OriginServer {
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d*)-(\\d*)");
+
+    private final FileChannel file;
+    private final HttpServer server;
+
+    public OriginServer(int port, Path path) throws IOException {
+        this.file = FileChannel.open(path, StandardOpenOption.READ);
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/", this::handle);
+        server.setExecutor(Executors.newCachedThreadPool());
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!exchange.getRequestMethod().equals("GET") && !exchange.getRequestMethod().equals("HEAD")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            long size = file.size();
+            long start = 0;
+            long end = size - 1;
+            int status = 200;
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            if (range != null) {
+                Matcher matcher = RANGE.matcher(range.trim());
+                if (!matcher.matches() || (matcher.group(1).isEmpty() && matcher.group(2).isEmpty())) {
+                    exchange.sendResponseHeaders(416, -1);
+                    return;
+                }
+                if (matcher.group(1).isEmpty()) {
+                    start = Math.max(0, size - Long.parseLong(matcher.group(2))); // The last n bytes
+                } else {
+                    start = Long.parseLong(matcher.group(1));
+                    if (!matcher.group(2).isEmpty()) {
+                        end = Math.min(end, Long.parseLong(matcher.group(2)));
+                    }
+                }
+                if (start >= size || start > end) {
+                    exchange.getResponseHeaders().set("Content-Range", "bytes */" + size);
+                    exchange.sendResponseHeaders(416, -1);
+                    return;
+                }
+                status = 206;
+                exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + size);
+            }
+            long length = end - start + 1;
+            exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+            exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+            if (exchange.getRequestMethod().equals("HEAD")) {
+                exchange.sendResponseHeaders(status, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(status, length);
+            OutputStream body = exchange.getResponseBody();
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            long position = start;
+            while (position <= end) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), end - position + 1));
+                int read = file.read(buffer, position);
+                if (read <= 0) {
+                    break;
+                }
+                body.write(buffer.array(), 0, read);
+                position += read;
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.out.println("Usage: java OriginServer <port> <file>");
+            return;
+        }
+        OriginServer origin = new OriginServer(Integer.parseInt(args[0]), Path.of(args[1]));
+        origin.start();
+        System.out.println("Serving " + args[1] + " on port " + args[0]);
+    }
+}
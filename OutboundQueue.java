@@ -0,0 +1,227 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+/*
+ * Outbound frames for one neighbor, written by the neighbor's own writer thread so a slow neighbor only holds up
+ * itself. Control messages are written ahead of queued PIECE data, and everything that is queued goes out in one
+ * gathering write. Only a bounded number of PIECE frames may wait, so whoever produces them for a slow neighbor blocks
+ * instead of buffering without limit. Control messages are not bounded, since the protocol itself limits how many can
+ * be outstanding (at most one HAVE per piece, a few CHOKE/UNCHOKE per interval).
+ */
+public class OutboundQueue implements Runnable {
+    private static final int MAX_GATHERED_BUFFERS = 128;
+
+    private final Connection connection;
+    private final int bulkCapacity;
+    private final BulkListener listener;
+    // Each frame is one or more buffers, e.g. the header and the piece data, which are never copied into one array
+    private final Deque<ByteBuffer[]> control = new ArrayDeque<>();
+    private final Deque<BulkFrame> bulk = new ArrayDeque<>();
+    // PIECE frames promised to requests that are still being read from disk
+    private int reserved = 0;
+    private boolean writing = false;
+    // Time spent inside socket writes. A writer that is always writing is held back by the uplink, not by the neighbor.
+    private long writingSince;
+    private long writeNanos;
+    private boolean closed = false;
+    // The PIECE frames in the batch being written, and how many of them the upload scheduler dispatched
+    private int batchBulkFrames;
+    private int batchScheduledFrames;
+    private long batchBulkBytes;
+
+    // Told about PIECE frames once they are written, e.g. so the upload scheduler knows the uplink took them. Only
+    // scheduledFrames of them answer requests the scheduler dispatched, the rest were pushed, e.g. down a chain. Told
+    // once when the queue is closed, since the frames still waiting in it are never written.
+    public interface BulkListener {
+        void onBulkWritten(int scheduledFrames, long bytes);
+
+        default void onClosed() {
+        }
+    }
+
+    private record BulkFrame(ByteBuffer[] buffers, boolean scheduled) {
+    }
+
+    public OutboundQueue(Connection connection, int bulkCapacity) {
+        this(connection, bulkCapacity, null);
+    }
+
+    public OutboundQueue(Connection connection, int bulkCapacity, BulkListener listener) {
+        this.connection = connection;
+        this.bulkCapacity = bulkCapacity;
+        this.listener = listener;
+    }
+
+    public Connection getConnection() {
+        return connection;
+    }
+
+    public synchronized void enqueueControl(ByteBuffer... frame) {
+        if (closed) {
+            return;
+        }
+        control.add(frame);
+        notifyAll();
+    }
+
+    // Blocks while the neighbor already has bulkCapacity PIECE frames waiting to be written or reserved. Returns false if
+    // the queue was closed and the frame dropped.
+    public synchronized boolean enqueueBulk(ByteBuffer... frame) throws InterruptedException {
+        return enqueue(false, frame);
+    }
+
+    // For the answer to a REQUEST, which takes the room reserved for it when the REQUEST was read instead of waiting.
+    // Only these frames use up reservations, so pieces nobody requested cannot take the room held for the answers.
+    public synchronized boolean enqueueReserved(ByteBuffer... frame) throws InterruptedException {
+        if (reserved > 0) {
+            reserved--; // The room it held is free now, so this does not wait
+        }
+        return enqueue(true, frame);
+    }
+
+    private boolean enqueue(boolean scheduled, ByteBuffer[] frame) throws InterruptedException {
+        while (!closed && bulk.size() + reserved >= bulkCapacity) {
+            wait();
+        }
+        if (closed) {
+            return false;
+        }
+        bulk.add(new BulkFrame(frame, scheduled));
+        notifyAll();
+        return true;
+    }
+
+    // Blocks until there is room for one more PIECE frame and holds it, so the thread that later produces the frame
+    // never has to wait for this neighbor
+    public synchronized void reserveBulk() throws InterruptedException {
+        while (!closed && bulk.size() + reserved >= bulkCapacity) {
+            wait();
+        }
+        reserved++;
+    }
+
+    public synchronized void releaseBulk() {
+        if (reserved > 0) {
+            reserved--;
+        }
+        notifyAll();
+    }
+
+    public synchronized long getWriteNanos() {
+        return writeNanos + (writing ? System.nanoTime() - writingSince : 0);
+    }
+
+    public synchronized int getQueueDepth() {
+        return control.size() + bulk.size();
+    }
+
+    @Override
+    public void run() {
+        try {
+            ByteBuffer[] batch;
+            while ((batch = takeBatch()) != null) {
+                write(batch);
+                int bulkFrames;
+                int scheduledFrames;
+                long bulkBytes;
+                synchronized (this) {
+                    writing = false;
+                    writeNanos += System.nanoTime() - writingSince;
+                    bulkFrames = batchBulkFrames;
+                    scheduledFrames = batchScheduledFrames;
+                    bulkBytes = batchBulkBytes;
+                    notifyAll();
+                }
+                if (listener != null && bulkFrames > 0) {
+                    listener.onBulkWritten(scheduledFrames, bulkBytes);
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            // The neighbor is gone. Closing the connection also ends its reader, which cleans up after it.
+            try {
+                connection.close();
+            } catch (IOException ignored) {
+            }
+        } finally {
+            close();
+        }
+    }
+
+    // Waits for queued frames, control first, then as much PIECE data as fits in one gathering write
+    private synchronized ByteBuffer[] takeBatch() throws InterruptedException {
+        while (!closed && control.isEmpty() && bulk.isEmpty()) {
+            wait();
+        }
+        if (closed) {
+            return null;
+        }
+
+        List<ByteBuffer> batch = new ArrayList<>();
+        while (!control.isEmpty() && (batch.isEmpty() || batch.size() + control.peek().length <= MAX_GATHERED_BUFFERS)) {
+            Collections.addAll(batch, control.poll());
+        }
+        batchBulkFrames = 0;
+        batchScheduledFrames = 0;
+        batchBulkBytes = 0;
+        while (!bulk.isEmpty() && (batch.isEmpty() || batch.size() + bulk.peek().buffers().length <= MAX_GATHERED_BUFFERS)) {
+            BulkFrame frame = bulk.poll();
+            Collections.addAll(batch, frame.buffers());
+            batchBulkFrames++;
+            if (frame.scheduled()) {
+                batchScheduledFrames++;
+            }
+            for (ByteBuffer buffer : frame.buffers()) {
+                batchBulkBytes += buffer.remaining();
+            }
+        }
+        writing = true;
+        writingSince = System.nanoTime();
+        notifyAll(); // Producers waiting for space in the bulk queue
+        return batch.toArray(new ByteBuffer[0]);
+    }
+
+    private void write(ByteBuffer[] batch) throws IOException {
+        GatheringByteChannel channel = connection.getChannel();
+        long remaining = 0;
+        for (ByteBuffer buffer : batch) {
+            remaining += buffer.remaining();
+        }
+        while (remaining > 0) {
+            remaining -= channel.write(batch);
+        }
+    }
+
+    // Waits up to the timeout for everything queued to be written, so messages sent right before shutdown still arrive
+    public synchronized void drain(long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (!closed && (writing || !control.isEmpty() || !bulk.isEmpty())) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return;
+            }
+            wait(remaining);
+        }
+    }
+
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            control.clear();
+            bulk.clear();
+            notifyAll();
+        }
+        // Outside the lock, like onBulkWritten
+        if (listener != null) {
+            listener.onClosed();
+        }
+    }
+}
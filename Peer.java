@@ -1,17 +1,21 @@
-import java.io.BufferedInputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 public class Peer {
@@ -45,20 +49,76 @@ public class Peer {
             this.port = port;
         }
 
+        // Whether PeerInfo.cfg lists the peer as starting with the file. Unknown, and false, for discovered peers.
+        public boolean getHasFile() {
+            return hasFile;
+        }
+
+        public void setHasFile(boolean hasFile) {
+            this.hasFile = hasFile;
+        }
+
         public final static String HEADER = "P2PFILESHARINGPROJ";
         private int peerID;
         private String hostname;
         private int port;
+        private boolean hasFile;
     }
 
     public PeerInfo getPeerInfo() {
         return peerInfo;
     }
 
+    // Chokes are only enforced on a backlog of requests. With RequestPipeline above 1 a choked neighbor's queued
+    // requests are dropped and a choked leecher waits to be unchoked. With one request at a time the upload scheduler has
+    // nothing to weigh, so the original protocol is kept and such requests are still served and sent.
+    public boolean isRequestPipelined() {
+        return requestPipeline > 1;
+    }
+
+    // Every piece index that can be exchanged, repair pieces included
     public int getNumPieces() {
         return numPieces;
     }
 
+    // The pieces the file itself is cut into
+    public int getNumSourcePieces() {
+        return numSourcePieces;
+    }
+
+    // Null unless Deduplicate is set
+    public DuplicatePieces getDuplicatePieces() {
+        return duplicatePieces;
+    }
+
+    // Null unless erasure coding is on
+    public ErasureCoder getErasureCoder() {
+        return erasureCoder;
+    }
+
+    // Brackets every PrimaryConnector.storePiece, see piecesBeingStored
+    public void beginStore() {
+        piecesBeingStored.incrementAndGet();
+    }
+
+    public void endStore() {
+        piecesBeingStored.decrementAndGet();
+    }
+
+    // True exactly once, for whoever stored the piece that completed the file. With erasure coding, pieces that were
+    // still in flight can arrive after that.
+    public boolean markDownloadComplete() {
+        return bitmap.hasAllPieces() && downloadComplete.compareAndSet(false, true);
+    }
+
+    // Whether a neighbor has anything this peer still needs
+    public boolean isInterestedIn(Bitmap neighborBitmap) {
+        if (erasureCoder != null) {
+            return erasureCoder.isInteresting(bitmap, neighborBitmap);
+        }
+        return bitmap.containsInterestedPieces(neighborBitmap);
+    }
+
     public Neighbors getNeighbors() {
         return neighbors;
     }
@@ -83,15 +143,167 @@ public class Peer {
         return peers;
     }
 
+    public boolean isCompressionEnabled() {
+        return compression;
+    }
+
+    public boolean isFastExtensionsEnabled() {
+        return fastExtensions;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    // Every known peer, including this one, has the complete file. A peer that can still learn about others through the
+    // tracker or peer exchange keeps waiting while it knows no one, so a lone seed stays up for the first leecher.
+    public boolean isSwarmComplete() {
+        if (daemon) {
+            return false; // A daemon only stops when it is told to
+        }
+        if (piecesBeingStored.get() > 0) {
+            return false; // Their HAVEs are not sent yet
+        }
+        if (neighborSet != null) {
+            return neighborSet.canLeave();
+        }
+        if (isDynamicMembership() && peers.size() < 2) {
+            return false;
+        }
+        return neighbors.getHasCompleteFileNeighbors().size() == peers.size();
+    }
+
+    public boolean hasBoundedNeighbors() {
+        return maxNeighbors > 0;
+    }
+
+    // Null unless MaxNeighbors is set
+    public NeighborSet getNeighborSet() {
+        return neighborSet;
+    }
+
+    // How many direct buffers received pieces may occupy at once, 0 to receive them onto the heap
+    public int getReceiveBuffers() {
+        return receiveBuffers;
+    }
+
+    // Null unless OriginURL is set
+    public WebSeed getWebSeed() {
+        return webSeed;
+    }
+
+    public UploadScheduler getUploadScheduler() {
+        return uploadScheduler;
+    }
+
+    // Null if SnubTimeout is 0
+    public SnubDetector getSnubDetector() {
+        return snubDetector;
+    }
+
+    public boolean isSnubbed(int peerID) {
+        return snubDetector != null && snubDetector.isSnubbed(peerID);
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public int getPieceSize() {
+        return pieceSize;
+    }
+
+    public TraceRecorder getTrace() {
+        return trace;
+    }
+
+    public PiecePicker getPiecePicker() {
+        return piecePicker;
+    }
+
+    // Null unless pieces are distributed down chains
+    public ChainReplicator getChainReplicator() {
+        return chainReplicator;
+    }
+
+    public Stage getProtocolStage() {
+        return protocolStage;
+    }
+
+    public Stage getDiskStage() {
+        return diskStage;
+    }
+
+    // A read-only channel over the file that can be read while it downloads, blocking only on pieces that are missing
+    public SeekableByteChannel openChannel() {
+        return new PieceChannel(this);
+    }
+
+    public InputStream openInputStream() {
+        return Channels.newInputStream(openChannel());
+    }
+
+    // Null unless this peer started with the file and super-seeding is enabled
+    public SuperSeeder getSuperSeeder() {
+        return superSeeder;
+    }
+
+    public boolean isPeerExchangeEnabled() {
+        return peerExchange;
+    }
+
+    // Membership is dynamic when peers can be learned from the tracker or from neighbors instead of PeerInfo.cfg alone,
+    // and for a daemon, which accepts new peers at any time
+    public boolean isDynamicMembership() {
+        return trackerClient != null || peerExchange || daemon;
+    }
+
     private final PeerInfo peerInfo = new PeerInfo();
     private boolean hasFile;
     private int numPreferredNeighbors;
+    // With MaxPreferredNeighbors set, the number of preferred neighbors follows the upload capacity, see UploadSlots
+    private int minPreferredNeighbors = 1;
+    private int maxPreferredNeighbors = 0;
+    private UploadSlots uploadSlots;
     private int unchokingInterval;
     private int optimisticUnchokingInterval;
     private String fileName;
-    private int fileSize;
+    private long fileSize;
     private int pieceSize;
     private int numPieces;
+    private int numSourcePieces;
+    // With RepairPieces set, every group of ErasureGroupSize pieces gets that many Reed-Solomon repair pieces
+    private int erasureGroupSize = 32;
+    private int repairPieces = 0;
+    private ErasureCoder erasureCoder;
+    // A peer holding an earlier version of the file in PreviousVersion copies the pieces the manifest of the new version
+    // shares with it instead of downloading them
+    private String previousVersion;
+    // With Deduplicate set, pieces the manifest shows to have identical content are downloaded once
+    private boolean deduplicate;
+    private DuplicatePieces duplicatePieces;
+    // Where downloaded pieces are kept, see PieceStore. Sharded storage stripes them across StorageDirectories.
+    private String storage = "mmap";
+    private List<String> storageDirectories = new ArrayList<>();
+    private String manifestFile;
+    private boolean compression;
+    private boolean fastExtensions;
+    private int haveBatchInterval = 100;
+    private boolean peerExchange;
+    private String trackerAddress;
+    private int trackerInterval = 10;
+    private int trackerNumWant = 10;
+    private TrackerClient trackerClient;
+    private boolean superSeed;
+    private int superSeedPieces = 2;
+    private SuperSeeder superSeeder;
+    // With OriginURL set, leechers also fetch pieces from that HTTP server, at no more than OriginRate KB/s
+    private String originURL;
+    // Received pieces are read into a pool of this many direct buffers instead of onto the heap
+    private int receiveBuffers = 16;
+    private int originRate = 1024;
+    private WebSeed webSeed;
+    private final long startTime = System.nanoTime();
 
     private final Neighbors neighbors;
     private final Logger logger;
@@ -100,40 +312,256 @@ public class Peer {
     private final MessageManager messageManager;
     private final ExecutorService executor = Executors.newCachedThreadPool();
 
-    //match senders to ids to track can talk about this
-    private final List<PeerInfo> peers = new ArrayList<>();
-    private int indexInConfig = 0;
-    private int numConnectedPeers = 0;
+    //match senders to ids to track can talk about this. Peers learned from the tracker or from peer exchange are appended
+    private final List<PeerInfo> peers = new CopyOnWriteArrayList<>();
+
+    // Outbound connections are retried with an exponential backoff until the peer comes up
+    private static final long INITIAL_CONNECT_BACKOFF_MS = 100;
+    private static final long MAX_CONNECT_BACKOFF_MS = 5000;
+    // How long an inbound connection from an already connected neighbor waits for the old connection to turn out dead
+    private static final long OLD_CONNECTION_WAIT_MS = 1000;
+    private static final long OLD_CONNECTION_POLL_MS = 50;
+    private int connectTimeout = 2000;
+    // How many times a neighbor whose established connection broke is dialed again before giving up on it
+    private int reconnectAttempts = 0;
+    // Binary event trace for TraceAnalyzer, off unless Trace is set
+    private boolean traceEnabled;
+    private int traceRecords = 1 << 20;
+    private TraceRecorder trace;
+    // How many PIECE frames may wait for one neighbor before the thread producing them blocks
+    private int outboundQueueSize = 16;
+    // In streaming mode pieces are fetched in order within StreamWindow pieces of the reader, and rarest-first beyond
+    private boolean streaming;
+    private int streamWindow = 32;
+    // How many pieces a leecher keeps requested from each neighbor that unchoked it
+    private int requestPipeline = 1;
+    private PiecePicker piecePicker;
+    // With "Distribution chain", pieces are pushed down chains of peers instead of requested, see ChainReplicator
+    private boolean chainDistribution;
+    private int chainCount = 1;
+    private ChainReplicator chainReplicator;
+    // Messages read from a neighbor are handled by the protocol stage, and piece reads and writes by the disk stage, so
+    // the threads reading from sockets never wait on the disk. Each stage has a fixed number of workers.
+    private int protocolThreads = 2;
+    private int diskThreads = 2;
+    private int stageQueueSize = 256;
+    private int pipelineStatsInterval = 0;
+    private Stage protocolStage;
+    private Stage diskStage;
+    // With MaxNeighbors set, each peer keeps a bounded, churned set of neighbors instead of connecting to everyone
+    private int maxNeighbors = 0;
+    private int neighborChurnInterval = 10;
+    private int neighborLinger = 30;
+    private NeighborSet neighborSet;
+    // A neighbor that unchoked this peer but sent no piece for SnubTimeout seconds is treated as snubbing it
+    private int snubTimeout = 0;
+    private SnubDetector snubDetector;
+    // Requested pieces are uploaded in weighted fair order, with at most UploadWindow of them between disk and sockets
+    private int preferredUploadWeight = 2;
+    private int optimisticUploadWeight = 1;
+    private int uploadWindow = 8;
+    private UploadScheduler uploadScheduler;
+    // A seed running as a daemon stays up after the swarm completes and keeps serving peers that join later
+    private boolean daemon;
+    // How many recently read pieces are kept on the heap, by default only for a daemon
+    private static final int DAEMON_PIECE_CACHE = 256;
+    private int pieceCache = -1;
+    private final AtomicBoolean shutDown = new AtomicBoolean(false);
+    private final AtomicBoolean downloadComplete = new AtomicBoolean(false);
+    // Pieces being stored on the disk stage. Several are stored at once, and the one that completes the file may finish
+    // before another has announced its piece, so the swarm only counts as complete once every store has finished.
+    private final AtomicInteger piecesBeingStored = new AtomicInteger();
+    // With "Transport auto", peers on the same host are connected over Unix domain sockets
+    private boolean unixDomainTransport;
+    private String unixSocketDirectory = System.getProperty("java.io.tmpdir");
 
-    public ServerSocket getServerSocket() {
+    public ServerSocketChannel getServerSocket() {
         return serverSocket;
     }
 
-    private ServerSocket serverSocket;
+    private ServerSocketChannel serverSocket;
+    // Only open when the Unix domain transport is enabled
+    private ServerSocketChannel unixServerSocket;
 
     public Peer(String ID) {
+        this(ID, null);
+    }
+
+    // ownEntry holds the hostname, port and has-file flag of a peer that is not listed in PeerInfo.cfg, which is enough
+    // to join a swarm through the tracker or peer exchange
+    public Peer(String ID, String[] ownEntry) {
         peerInfo.setPeerID(Integer.parseInt(ID));
         loadCommonConfig();
-        loadPeerInfo();
+        loadPeerInfo(ownEntry);
+        // Like super-seeding, daemon mode is for seeds. Leechers still leave once they and their neighbors are done.
+        daemon = daemon && hasFile;
+        if (pieceCache < 0) {
+            pieceCache = daemon ? DAEMON_PIECE_CACHE : 0;
+        }
+        if (maxNeighbors > 0 && (trackerAddress != null || peerExchange || daemon || chainDistribution)) {
+            // Candidates are drawn from PeerInfo.cfg, and the tracker and peer exchange already bound who connects
+            System.out.println("MaxNeighbors needs a static swarm without chain distribution, connecting to every peer");
+            maxNeighbors = 0;
+        }
 
         initializeServerSocket();
 
         this.logger = new Logger(peerInfo.getPeerID());
+        this.trace = new TraceRecorder(peerInfo.getPeerID(), traceEnabled, traceRecords);
         this.neighbors = new Neighbors(this);
-        this.bitmap = new Bitmap(numPieces, hasFile);
+        this.bitmap = new Bitmap(numPieces, numSourcePieces, hasFile);
         if (hasFile) {
             neighbors.setHasCompleteFileNeighbors(Integer.parseInt(ID));
         }
-        this.fileManager = new FileManager(peerInfo.getPeerID(), fileName, fileSize, pieceSize, numPieces, hasFile);
+        this.fileManager = createFileManager(fileName, fileSize, numSourcePieces, hasFile);
+        fileManager.setPieceCache(pieceCache);
+        if (repairPieces > 0) {
+            int numRepairPieces = numPieces - numSourcePieces;
+            fileManager.setRepairStore(createFileManager(fileName + ".repair", (long) numRepairPieces * pieceSize, numRepairPieces, false));
+            this.erasureCoder = new ErasureCoder(this, erasureGroupSize, repairPieces, numSourcePieces, pieceSize);
+            if (hasFile) {
+                erasureCoder.encode(fileManager);
+            }
+        }
+        fileManager.preallocate();
+        if (previousVersion != null && !hasFile) {
+            reusePreviousVersion();
+        }
+        if (deduplicate && !hasFile) {
+            Manifest manifest = readManifest();
+            if (manifest != null) {
+                this.duplicatePieces = new DuplicatePieces(this, manifest);
+                System.out.println("Manifest lists " + duplicatePieces.getNumDuplicates() + " pieces identical to an earlier one");
+            }
+        }
         this.messageManager = new MessageManager(this);
+        this.piecePicker = new PiecePicker(this, streaming, streamWindow, requestPipeline);
+        if (chainDistribution) {
+            if (isDynamicMembership()) {
+                // The chains are laid out from PeerInfo.cfg, which only lists every member in a static swarm
+                System.out.println("Chain distribution needs a static swarm, using the regular protocol");
+            } else {
+                this.chainReplicator = new ChainReplicator(this, peers, chainCount, outboundQueueSize);
+            }
+        }
+        if (maxNeighbors > 0) {
+            this.neighborSet = new NeighborSet(this, peers, maxNeighbors, neighborChurnInterval, neighborLinger);
+        }
+        this.uploadScheduler = new UploadScheduler(this, preferredUploadWeight, optimisticUploadWeight, uploadWindow);
+        this.protocolStage = new Stage("protocol", protocolThreads, stageQueueSize);
+        this.diskStage = new Stage("disk", diskThreads, stageQueueSize);
+        if (trackerAddress != null) {
+            this.trackerClient = new TrackerClient(this, trackerAddress, trackerNumWant);
+        }
+        if (maxPreferredNeighbors > 0) {
+            this.uploadSlots = new UploadSlots(this, minPreferredNeighbors, maxPreferredNeighbors, numPreferredNeighbors);
+        }
+        if (superSeed && hasFile) {
+            this.superSeeder = new SuperSeeder(this, superSeedPieces);
+        }
+        if (snubTimeout > 0 && !hasFile) {
+            this.snubDetector = new SnubDetector(this, snubTimeout);
+        }
+        if (originURL != null && !hasFile) {
+            if (chainReplicator != null) {
+                // Chains only carry the pieces pushed down them
+                System.out.println("Chain distribution does not use the origin");
+            } else {
+                this.webSeed = new WebSeed(this, originURL, originRate);
+            }
+        }
+    }
+
+    // A peer that starts with the file always serves it straight from the file
+    private FileManager createFileManager(String name, long size, int count, boolean containsInitialFile) {
+        String path = "peer_" + peerInfo.getPeerID() + "/" + name;
+        PieceStore store = null;
+        if (!containsInitialFile) {
+            try {
+                switch (storage) {
+                    case "memory":
+                        store = new MemoryPieceStore(size, pieceSize);
+                        break;
+                    case "sharded":
+                        // Every peer gets its own subdirectory, so peers on one host can share the directories
+                        List<String> directories = new ArrayList<>();
+                        for (String directory : storageDirectories.isEmpty() ? List.of("peer_" + peerInfo.getPeerID() + "/shards")
+                                : storageDirectories) {
+                            directories.add(directory + "/peer_" + peerInfo.getPeerID());
+                        }
+                        store = new ShardedPieceStore(directories, name, pieceSize, count);
+                        break;
+                    default:
+                }
+            } catch (IOException e) {
+                System.out.println("Could not create " + storage + " storage, using the file itself: " + e.getMessage());
+            }
+        }
+        if (store == null) {
+            store = new MappedPieceStore(path, size, pieceSize, containsInitialFile);
+        }
+        return new FileManager(peerInfo.getPeerID(), path, size, pieceSize, count, containsInitialFile, store);
+    }
+
+    // The manifest of the file, or null if it cannot be read or describes another file
+    private Manifest readManifest() {
+        Path manifestPath = Path.of(manifestFile != null ? manifestFile : fileName + ".manifest");
+        try {
+            Manifest manifest = Manifest.read(manifestPath);
+            if (manifest.getFileSize() != fileSize || manifest.getPieceSize() != pieceSize
+                    || manifest.getNumPieces() != numSourcePieces) {
+                System.out.println("Manifest " + manifestPath + " does not match FileSize and PieceSize");
+                return null;
+            }
+            return manifest;
+        } catch (IOException e) {
+            System.out.println("Could not read manifest " + manifestPath + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    // Copies the unchanged pieces of the previous version before any neighbor sees this peer's bitfield
+    private void reusePreviousVersion() {
+        Path previousPath = Path.of("peer_" + peerInfo.getPeerID(), previousVersion);
+        Manifest manifest = readManifest();
+        if (manifest == null) {
+            System.out.println("Downloading every piece");
+            return;
+        }
+        try {
+            long start = System.nanoTime();
+            int reused = manifest.reusePieces(previousPath, fileManager, bitmap);
+            logger.logPiecesReused(previousVersion, reused, numSourcePieces, (System.nanoTime() - start) / 1e9);
+        } catch (IOException e) {
+            System.out.println("Could not reuse pieces of " + previousPath + ": " + e.getMessage());
+            return;
+        }
+        if (markDownloadComplete()) {
+            // Nothing changed, so this peer starts out like one that has the file
+            neighbors.setHasCompleteFileNeighbors(peerInfo.getPeerID());
+            logger.logDownloadedFile();
+        }
     }
 
     private void initializeServerSocket() {
         try {
-            serverSocket = new ServerSocket(peerInfo.getPort());
-            serverSocket.setSoTimeout(500);
+            serverSocket = ServerSocketChannel.open();
+            serverSocket.bind(new InetSocketAddress(peerInfo.getPort()));
         } catch (IOException ignored) {
         }
+        if (unixDomainTransport) {
+            // Co-located peers connect through this socket file instead of the TCP loopback stack
+            Path path = Connection.unixDomainPath(unixSocketDirectory, peerInfo.getPeerID());
+            try {
+                Files.deleteIfExists(path); // left behind by a previous run
+                unixServerSocket = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+                unixServerSocket.bind(UnixDomainSocketAddress.of(path));
+                path.toFile().deleteOnExit();
+            } catch (IOException | UnsupportedOperationException e) {
+                System.out.println("Unix domain sockets unavailable, using TCP only: " + e.getMessage());
+                unixServerSocket = null;
+            }
+        }
     }
 
     private void loadCommonConfig() {
@@ -146,6 +574,14 @@ public class Peer {
                         System.out.println("Common.cfg : NumberOfPreferredNeighbors = " + Integer.parseInt(tokens[1]));
                         numPreferredNeighbors = Integer.parseInt(tokens[1]);
                         break;
+                    case "MinPreferredNeighbors":
+                        System.out.println("Common.cfg : MinPreferredNeighbors = " + Integer.parseInt(tokens[1]));
+                        minPreferredNeighbors = Integer.parseInt(tokens[1]);
+                        break;
+                    case "MaxPreferredNeighbors":
+                        System.out.println("Common.cfg : MaxPreferredNeighbors = " + Integer.parseInt(tokens[1]));
+                        maxPreferredNeighbors = Integer.parseInt(tokens[1]);
+                        break;
                     case "UnchokingInterval":
                         System.out.println("Common.cfg : UnchokingInterval = " + Integer.parseInt(tokens[1]));
                         unchokingInterval = Integer.parseInt(tokens[1]);
@@ -159,36 +595,235 @@ public class Peer {
                         fileName = tokens[1];
                         break;
                     case "FileSize":
-                        System.out.println("Common.cfg : FileSize = " + Integer.parseInt(tokens[1]));
-                        fileSize = Integer.parseInt(tokens[1]);
+                        System.out.println("Common.cfg : FileSize = " + Long.parseLong(tokens[1]));
+                        fileSize = Long.parseLong(tokens[1]);
                         break;
                     case "PieceSize":
                         System.out.println("Common.cfg : PieceSize = " + Integer.parseInt(tokens[1]));
                         pieceSize = Integer.parseInt(tokens[1]);
                         break;
+                    case "Compression":
+                        System.out.println("Common.cfg : Compression = " + tokens[1].equals("1"));
+                        compression = tokens[1].equals("1");
+                        break;
+                    case "FastExtensions":
+                        System.out.println("Common.cfg : FastExtensions = " + tokens[1].equals("1"));
+                        fastExtensions = tokens[1].equals("1");
+                        break;
+                    case "ReconnectAttempts":
+                        System.out.println("Common.cfg : ReconnectAttempts = " + Integer.parseInt(tokens[1]));
+                        reconnectAttempts = Integer.parseInt(tokens[1]);
+                        break;
+                    case "ConnectTimeout":
+                        System.out.println("Common.cfg : ConnectTimeout = " + Integer.parseInt(tokens[1]));
+                        connectTimeout = Integer.parseInt(tokens[1]);
+                        break;
+                    case "PeerExchange":
+                        System.out.println("Common.cfg : PeerExchange = " + tokens[1].equals("1"));
+                        peerExchange = tokens[1].equals("1");
+                        break;
+                    case "Tracker":
+                        System.out.println("Common.cfg : Tracker = " + tokens[1]);
+                        trackerAddress = tokens[1];
+                        break;
+                    case "TrackerInterval":
+                        System.out.println("Common.cfg : TrackerInterval = " + Integer.parseInt(tokens[1]));
+                        trackerInterval = Integer.parseInt(tokens[1]);
+                        break;
+                    case "TrackerPeers":
+                        System.out.println("Common.cfg : TrackerPeers = " + Integer.parseInt(tokens[1]));
+                        trackerNumWant = Integer.parseInt(tokens[1]);
+                        break;
+                    case "SuperSeed":
+                        System.out.println("Common.cfg : SuperSeed = " + tokens[1].equals("1"));
+                        superSeed = tokens[1].equals("1");
+                        break;
+                    case "SuperSeedPieces":
+                        System.out.println("Common.cfg : SuperSeedPieces = " + Integer.parseInt(tokens[1]));
+                        superSeedPieces = Integer.parseInt(tokens[1]);
+                        break;
+                    case "Streaming":
+                        System.out.println("Common.cfg : Streaming = " + tokens[1]);
+                        streaming = tokens[1].equals("1");
+                        break;
+                    case "StreamWindow":
+                        System.out.println("Common.cfg : StreamWindow = " + Integer.parseInt(tokens[1]));
+                        streamWindow = Integer.parseInt(tokens[1]);
+                        break;
+                    case "RequestPipeline":
+                        System.out.println("Common.cfg : RequestPipeline = " + Integer.parseInt(tokens[1]));
+                        requestPipeline = Integer.parseInt(tokens[1]);
+                        break;
+                    case "Trace":
+                        System.out.println("Common.cfg : Trace = " + tokens[1]);
+                        traceEnabled = tokens[1].equals("1");
+                        break;
+                    case "TraceRecords":
+                        System.out.println("Common.cfg : TraceRecords = " + Integer.parseInt(tokens[1]));
+                        traceRecords = Integer.parseInt(tokens[1]);
+                        break;
+                    case "RepairPieces":
+                        System.out.println("Common.cfg : RepairPieces = " + Integer.parseInt(tokens[1]));
+                        repairPieces = Integer.parseInt(tokens[1]);
+                        break;
+                    case "ErasureGroupSize":
+                        System.out.println("Common.cfg : ErasureGroupSize = " + Integer.parseInt(tokens[1]));
+                        erasureGroupSize = Integer.parseInt(tokens[1]);
+                        break;
+                    case "Storage":
+                        System.out.println("Common.cfg : Storage = " + tokens[1]);
+                        storage = tokens[1];
+                        break;
+                    case "StorageDirectories":
+                        System.out.println("Common.cfg : StorageDirectories = " + tokens[1]);
+                        storageDirectories = Arrays.asList(tokens[1].split(","));
+                        break;
+                    case "PreviousVersion":
+                        System.out.println("Common.cfg : PreviousVersion = " + tokens[1]);
+                        previousVersion = tokens[1];
+                        break;
+                    case "Deduplicate":
+                        System.out.println("Common.cfg : Deduplicate = " + tokens[1].equals("1"));
+                        deduplicate = tokens[1].equals("1");
+                        break;
+                    case "Manifest":
+                        System.out.println("Common.cfg : Manifest = " + tokens[1]);
+                        manifestFile = tokens[1];
+                        break;
+                    case "MaxNeighbors":
+                        System.out.println("Common.cfg : MaxNeighbors = " + Integer.parseInt(tokens[1]));
+                        maxNeighbors = Integer.parseInt(tokens[1]);
+                        break;
+                    case "NeighborChurnInterval":
+                        System.out.println("Common.cfg : NeighborChurnInterval = " + Integer.parseInt(tokens[1]));
+                        neighborChurnInterval = Integer.parseInt(tokens[1]);
+                        break;
+                    case "NeighborLinger":
+                        System.out.println("Common.cfg : NeighborLinger = " + Integer.parseInt(tokens[1]));
+                        neighborLinger = Integer.parseInt(tokens[1]);
+                        break;
+                    case "ReceiveBuffers":
+                        System.out.println("Common.cfg : ReceiveBuffers = " + Integer.parseInt(tokens[1]));
+                        receiveBuffers = Integer.parseInt(tokens[1]);
+                        break;
+                    case "OriginURL":
+                        System.out.println("Common.cfg : OriginURL = " + tokens[1]);
+                        originURL = tokens[1];
+                        break;
+                    case "OriginRate":
+                        System.out.println("Common.cfg : OriginRate = " + Integer.parseInt(tokens[1]));
+                        originRate = Integer.parseInt(tokens[1]);
+                        break;
+                    case "SnubTimeout":
+                        System.out.println("Common.cfg : SnubTimeout = " + Integer.parseInt(tokens[1]));
+                        snubTimeout = Integer.parseInt(tokens[1]);
+                        break;
+                    case "PreferredUploadWeight":
+                        System.out.println("Common.cfg : PreferredUploadWeight = " + Integer.parseInt(tokens[1]));
+                        preferredUploadWeight = Integer.parseInt(tokens[1]);
+                        break;
+                    case "OptimisticUploadWeight":
+                        System.out.println("Common.cfg : OptimisticUploadWeight = " + Integer.parseInt(tokens[1]));
+                        optimisticUploadWeight = Integer.parseInt(tokens[1]);
+                        break;
+                    case "UploadWindow":
+                        System.out.println("Common.cfg : UploadWindow = " + Integer.parseInt(tokens[1]));
+                        uploadWindow = Integer.parseInt(tokens[1]);
+                        break;
+                    case "Distribution":
+                        System.out.println("Common.cfg : Distribution = " + tokens[1]);
+                        chainDistribution = tokens[1].equals("chain");
+                        break;
+                    case "ChainCount":
+                        System.out.println("Common.cfg : ChainCount = " + Integer.parseInt(tokens[1]));
+                        chainCount = Integer.parseInt(tokens[1]);
+                        break;
+                    case "ProtocolThreads":
+                        System.out.println("Common.cfg : ProtocolThreads = " + Integer.parseInt(tokens[1]));
+                        protocolThreads = Integer.parseInt(tokens[1]);
+                        break;
+                    case "DiskThreads":
+                        System.out.println("Common.cfg : DiskThreads = " + Integer.parseInt(tokens[1]));
+                        diskThreads = Integer.parseInt(tokens[1]);
+                        break;
+                    case "StageQueueSize":
+                        System.out.println("Common.cfg : StageQueueSize = " + Integer.parseInt(tokens[1]));
+                        stageQueueSize = Integer.parseInt(tokens[1]);
+                        break;
+                    case "PipelineStatsInterval":
+                        System.out.println("Common.cfg : PipelineStatsInterval = " + Integer.parseInt(tokens[1]));
+                        pipelineStatsInterval = Integer.parseInt(tokens[1]);
+                        break;
+                    case "OutboundQueueSize":
+                        System.out.println("Common.cfg : OutboundQueueSize = " + Integer.parseInt(tokens[1]));
+                        outboundQueueSize = Integer.parseInt(tokens[1]);
+                        break;
+                    case "Daemon":
+                        System.out.println("Common.cfg : Daemon = " + tokens[1]);
+                        daemon = tokens[1].equals("1");
+                        break;
+                    case "PieceCache":
+                        System.out.println("Common.cfg : PieceCache = " + Integer.parseInt(tokens[1]));
+                        pieceCache = Integer.parseInt(tokens[1]);
+                        break;
+                    case "Transport":
+                        System.out.println("Common.cfg : Transport = " + tokens[1]);
+                        unixDomainTransport = tokens[1].equals("auto");
+                        break;
+                    case "UnixSocketDirectory":
+                        System.out.println("Common.cfg : UnixSocketDirectory = " + tokens[1]);
+                        unixSocketDirectory = tokens[1];
+                        break;
+                    case "HaveBatchInterval":
+                        System.out.println("Common.cfg : HaveBatchInterval = " + Integer.parseInt(tokens[1]));
+                        haveBatchInterval = Integer.parseInt(tokens[1]);
+                        break;
                 }
             }
-            numPieces = (int) Math.ceil((double) fileSize / (double) pieceSize);
-            System.out.println("Num Pieces = " + numPieces);
+            // Piece indices are 4 bytes on the wire, so the piece count, not the file size, is what has to fit in an int
+            long pieceCount = (fileSize + pieceSize - 1) / pieceSize;
+            if (pieceCount > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("FileSize " + fileSize + " needs " + pieceCount + " pieces, increase PieceSize");
+            }
+            numSourcePieces = (int) pieceCount;
+            if (repairPieces > 0) {
+                // GF(256) has room for 256 distinct pieces per group
+                erasureGroupSize = Math.max(1, Math.min(erasureGroupSize, 256 - repairPieces));
+                pieceCount += (long) ErasureCoder.getNumGroups(numSourcePieces, erasureGroupSize) * repairPieces;
+                if (pieceCount > Integer.MAX_VALUE) {
+                    throw new IllegalArgumentException("Too many repair pieces for FileSize " + fileSize + ", increase PieceSize");
+                }
+            }
+            numPieces = (int) pieceCount;
+            System.out.println("Num Pieces = " + numPieces + " (" + numSourcePieces + " of the file)");
         } catch (IOException e) {
             System.out.println("Error reading common.cfg");
         }
     }
 
-    private void loadPeerInfo() {
+    private void loadPeerInfo(String[] ownEntry) {
         try {
-            List<String> lines = Files.readAllLines(Paths.get("./PeerInfo.cfg"));
+            List<String> lines = new ArrayList<>(Files.readAllLines(Paths.get("./PeerInfo.cfg")));
+            boolean listed = lines.stream().anyMatch(line -> line.split(" ")[0].equals(String.valueOf(peerInfo.getPeerID())));
+            if (!listed && ownEntry != null) {
+                // A peer joining through the tracker or peer exchange is not in the shared config, so its entry is appended
+                lines.add(String.format("%d %s %s %s", peerInfo.getPeerID(), ownEntry[0], ownEntry[1], ownEntry[2]));
+            }
             int cnt = 0;
             for (String line : lines) {
+                if (line.isBlank()) {
+                    continue;
+                }
                 String[] tokens = line.split(" ");
                 int id = Integer.parseInt(tokens[0]);
 
                 // Note, all information from the peer info file is kept here and in order of the file,
-                // including the current peer. This order is important when making sockets
+                // including the current peer. Each peer only dials the peers listed before it
                 PeerInfo info = new PeerInfo();
                 info.setPeerID(id);
                 info.setHostname(tokens[1]);
                 info.setPort(Integer.parseInt(tokens[2]));
+                info.setHasFile(tokens[3].equals("1"));
 
                 System.out.println("PeerInfo.cfg : " + info.getPeerID() + " " + info.getPort() + " " + tokens[3].equals("1"));
                 peers.add(info);
@@ -199,10 +834,6 @@ public class Peer {
                     hasFile = tokens[3].equals("1");
 
                     System.out.println("PeerInfo.cfg : index " + cnt + " is the current peer's information");
-
-                    // Note, we will keep track of the index in this ordered list so that we can use it for handling
-                    // connections when receiving incoming connections and which peer to expect.
-                    indexInConfig = cnt;
                 }
                 cnt++;
             }
@@ -212,70 +843,331 @@ public class Peer {
     }
 
     private void createSenders() {
+        executor.submit(new SafeRunnable(uploadScheduler));
+        if (snubDetector != null) {
+            executor.submit(new SafeRunnable(snubDetector));
+        }
+        if (webSeed != null) {
+            executor.submit(new SafeRunnable(webSeed));
+        }
+        if (neighborSet != null) {
+            executor.submit(new SafeRunnable(neighborSet));
+            return;
+        }
         for (PeerInfo expectedPeer : peers) {
             if (expectedPeer.getPeerID() == peerInfo.getPeerID()) {
                 // If we've reached the current peer, that means we've iterated over all the peers before the current one
-                // from the perspective of the PeerInfo.cfg file. In that case, we've made all the possible connections.
+                // from the perspective of the PeerInfo.cfg file. In that case, we've started all the possible connections.
                 break;
             }
+            // Every connection is attempted on its own thread so one unreachable peer does not hold up the others
+            executor.submit(new SafeRunnable(() -> connectWithRetry(expectedPeer)));
+        }
+    }
+
+    // A single attempt, for the neighbor set, which picks someone else if the peer does not answer
+    public void connectOnce(PeerInfo expectedPeer) {
+        connectWithRetry(expectedPeer, 1);
+    }
+
+    private void connectWithRetry(PeerInfo expectedPeer) {
+        connectWithRetry(expectedPeer, 0);
+    }
+
+    // maxAttempts of 0 keeps trying until the swarm is complete
+    private void connectWithRetry(PeerInfo expectedPeer, int maxAttempts) {
+        long backoff = INITIAL_CONNECT_BACKOFF_MS;
+        int attempts = 0;
+        while (!Thread.currentThread().isInterrupted() && serverSocket.isOpen() && !isSwarmComplete()) {
+            if (neighbors.getConnectedPeers().containsKey(expectedPeer.getPeerID())) {
+                return; // The peer dialed us first
+            }
             try {
                 System.out.println("Attempting to create connection with peer " + expectedPeer.getPeerID());
-                Socket socket = new Socket(expectedPeer.getHostname(), expectedPeer.getPort());
-                socket.setSoTimeout(500);
-                System.out.println("Created connection with peer " + expectedPeer.getPeerID());
+                Connection connection = openConnection(expectedPeer);
+                System.out.println("Created " + (connection.isUnixDomain() ? "Unix domain" : "TCP") + " connection with peer " + expectedPeer.getPeerID());
 
+                registerConnection(expectedPeer.getPeerID(), connection);
+                executor.submit(new SafeRunnable(new PrimaryConnector(connection, this, expectedPeer.getPeerID(), true)));
+                return;
+            } catch (IOException e) {
+                // The peer may simply not be started yet, so keep trying with an exponential backoff
+                if (maxAttempts > 0 && ++attempts >= maxAttempts) {
+                    System.out.println("Connection with peer " + expectedPeer.getPeerID() + " failed " + attempts + " times, giving up");
+                    return;
+                }
+                System.out.println("Connection with peer " + expectedPeer.getPeerID() + " failed, retrying in " + backoff + " ms");
+            }
+            try {
+                TimeUnit.MILLISECONDS.sleep(backoff);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            backoff = Math.min(backoff * 2, MAX_CONNECT_BACKOFF_MS);
+        }
+    }
 
-                neighbors.addNeighbor(expectedPeer.getPeerID(), socket);
-                messageManager.addOutputStream(expectedPeer.getPeerID(), new DataOutputStream(socket.getOutputStream()));
-                messageManager.addInputStream(expectedPeer.getPeerID(), new BufferedInputStream(socket.getInputStream()));
-
-                executor.submit(new SafeRunnable(new PrimaryConnector(socket, this, expectedPeer.getPeerID(), true)));
+    // Prefers the Unix domain socket of a peer on the same host and falls back to TCP when it is not listening on one
+    private Connection openConnection(PeerInfo expectedPeer) throws IOException {
+        if (unixServerSocket != null && Connection.isLocalHost(expectedPeer.getHostname())) {
+            try {
+                return Connection.openUnixDomain(Connection.unixDomainPath(unixSocketDirectory, expectedPeer.getPeerID()));
             } catch (IOException ignored) {
             }
         }
+        return Connection.openTcp(expectedPeer.getHostname(), expectedPeer.getPort(), connectTimeout);
     }
 
     private void createReceivers() {
+        createReceiver(serverSocket, false);
+        if (unixServerSocket != null) {
+            createReceiver(unixServerSocket, true);
+        }
+    }
+
+    private void createReceiver(ServerSocketChannel listener, boolean unixDomain) {
         executor.submit(new SafeRunnable(() -> {
+            while (!Thread.currentThread().isInterrupted() && listener.isOpen()) {
+                try {
+                    Connection connection = new Connection(listener.accept(), unixDomain);
+
+                    // The handshake is read on its own thread so a slow connection does not hold up the accept loop
+                    executor.submit(new SafeRunnable(() -> acceptConnection(connection)));
+                } catch (IOException e) {
+                    // Closing the listener during shutdown ends the accept loop
+                    break;
+                }
+            }
+        }));
+    }
+
+    private void acceptConnection(Connection connection) {
+        try {
+            // Peers can start in any order, so an inbound connection is bound to whichever peer its handshake names, as
+            // long as that peer is not connected already. Without dynamic membership it must also be in the config.
+            Set<Integer> knownPeerIDs = peers.stream().map(PeerInfo::getPeerID).collect(Collectors.toSet());
+            MessageManager.Pair<Integer, Integer> handshake = messageManager.receiveHandshake(connection,
+                    id -> id != peerInfo.getPeerID() && (isDynamicMembership() || knownPeerIDs.contains(id)));
+            if (handshake == null) {
+                System.out.println("Dropping inbound connection without a valid handshake");
+                connection.close();
+                return;
+            }
+            int connectedPeerID = handshake.first;
+
+            // A neighbor that was killed and restarted may dial again before its old connection was cleaned up here.
+            // Its reader or writer fails on the broken connection and closes it, so the old connection is only dropped
+            // once that happened. A neighbor whose connection is alive is refused, since one link is enough.
+            Connection old = neighbors.getConnectedPeers().get(connectedPeerID);
+            if (old != null) {
+                if (!awaitClosed(old)) {
+                    System.out.println("Refusing peer " + connectedPeerID + ", it is already connected");
+                    connection.close();
+                    return;
+                }
+                System.out.println("Peer " + connectedPeerID + " connected again, dropping its old connection");
+                disconnect(connectedPeerID, old);
+            }
+
+            if (neighborSet != null && !neighborSet.admit(connectedPeerID)) {
+                System.out.println("Refusing peer " + connectedPeerID + ", the neighbor set is full");
+                connection.close();
+                return;
+            }
+
+            if (!knownPeerIDs.contains(connectedPeerID)) {
+                // Its listening port is unknown until the peer sends its own entry through peer exchange
+                PeerInfo info = new PeerInfo();
+                info.setPeerID(connectedPeerID);
+                info.setHostname(connection.getRemoteHost());
+                addDiscoveredPeer(info, false);
+            }
+
+            messageManager.setCapabilities(connectedPeerID, handshake.second);
+            registerConnection(connectedPeerID, connection);
+            executor.submit(new SafeRunnable(new PrimaryConnector(connection, this, connectedPeerID, false)));
+        } catch (IOException ignored) {
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             try {
-                while (!Thread.currentThread().isInterrupted() && !serverSocket.isClosed()) {
-                    if (Thread.currentThread().isInterrupted()) {
-                        Thread.currentThread().interrupt();
-                        break;
-                    }
-                    try {
-                        Socket socket = serverSocket.accept();
-                        socket.setSoTimeout(500);
+                connection.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
 
-                        // This is the expected peer because we should only receive new connections from peers that appear
-                        // after this peer in the config file. Therefore, it would be the index of this peer plus the
-                        // number of connected peers + 1. The + 1 describes the "next" peer to be expected.
+    // Whether the connection closes within OLD_CONNECTION_WAIT_MS
+    private boolean awaitClosed(Connection connection) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(OLD_CONNECTION_WAIT_MS);
+        while (connection.isOpen() && System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(OLD_CONNECTION_POLL_MS);
+        }
+        return !connection.isOpen();
+    }
 
-                        PeerInfo expectedPeer = peers.get(indexInConfig + numConnectedPeers + 1);
-                        numConnectedPeers++;
+    // Adds a peer learned from the tracker or from peer exchange. Between two discovered peers the one with the higher ID
+    // dials, so they never open two connections to each other.
+    public synchronized void addDiscoveredPeer(PeerInfo discovered, boolean complete) {
+        if (discovered.getPeerID() == peerInfo.getPeerID()) {
+            return;
+        }
+        if (complete) {
+            neighbors.setHasCompleteFileNeighbors(discovered.getPeerID());
+        }
 
+        PeerInfo known = peers.stream().filter(info -> info.getPeerID() == discovered.getPeerID()).findFirst().orElse(null);
+        if (known != null) {
+            if (known.getPort() == 0 && discovered.getPort() != 0) {
+                known.setHostname(discovered.getHostname());
+                known.setPort(discovered.getPort());
+                neighbors.sendPeerExchange(known, complete);
+            }
+            return;
+        }
 
-                        neighbors.addNeighbor(expectedPeer.getPeerID(), socket);
-                        messageManager.addOutputStream(expectedPeer.getPeerID(), new DataOutputStream(socket.getOutputStream()));
-                        messageManager.addInputStream(expectedPeer.getPeerID(), new BufferedInputStream(socket.getInputStream()));
+        System.out.println("Discovered peer " + discovered.getPeerID() + " at " + discovered.getHostname() + ":" + discovered.getPort());
+        peers.add(discovered);
+        neighbors.addPeer(discovered.getPeerID());
+        if (discovered.getPort() != 0) {
+            neighbors.sendPeerExchange(discovered, complete);
+        }
 
-                        executor.submit(new PrimaryConnector(socket, this, expectedPeer.getPeerID(), false));
-                    } catch (SocketException | SocketTimeoutException ignored) {
-                    } catch (Exception e) {
-                        Thread.currentThread().interrupt();
-                        break;
-                    }
+        // A connection between two peers that already have the file would carry nothing
+        boolean useful = !complete || !bitmap.hasAllPieces();
+        if (discovered.getPeerID() < peerInfo.getPeerID() && discovered.getPort() != 0 && useful) {
+            executor.submit(new SafeRunnable(() -> connectWithRetry(discovered)));
+        }
+    }
+
+    // Synchronized with disconnect, so a connection that is being replaced cannot remove its replacement's state
+    private synchronized void registerConnection(int peerID, Connection connection) {
+        neighbors.addNeighbor(peerID, connection);
+        if (neighborSet != null) {
+            neighborSet.onConnected(peerID);
+        }
+        OutboundQueue queue = new OutboundQueue(connection, outboundQueueSize,
+                uploadScheduler.onConnected(peerID, connection));
+        messageManager.addOutboundQueue(peerID, queue);
+        messageManager.addInputStream(peerID, connection.getInputStream());
+        executor.submit(new SafeRunnable(queue));
+    }
+
+    // Closes one neighbor's connection without affecting the others. Returns false if the connection was no longer the
+    // neighbor's current one, e.g. because the neighbor already reconnected.
+    public boolean disconnect(int peerID, Connection connection) {
+        try {
+            connection.close();
+        } catch (IOException ignored) {
+        }
+        Set<Integer> released = removeConnection(peerID, connection);
+        if (released == null) {
+            return false;
+        }
+        logger.logDisconnected(peerID);
+        trace.record(TraceRecorder.Event.DISCONNECTED, peerID);
+        if (!released.isEmpty()) {
+            reassignRequests(peerID, released);
+        }
+        return true;
+    }
+
+    // Forgets the neighbor's state if the connection is still its current one. Returns the pieces that were requested
+    // from it, or null if the connection was already replaced.
+    private synchronized Set<Integer> removeConnection(int peerID, Connection connection) {
+        if (neighbors.getConnectedPeers().get(peerID) != connection) {
+            return null;
+        }
+        messageManager.removePeer(peerID);
+        Set<Integer> released = neighbors.removeNeighbor(peerID, connection);
+        if (superSeeder != null) {
+            superSeeder.onDisconnected(peerID);
+        }
+        if (neighborSet != null) {
+            neighborSet.onDisconnected(peerID);
+        }
+        if (snubDetector != null) {
+            snubDetector.onDisconnected(peerID);
+        }
+        uploadScheduler.onDisconnected(connection);
+        return released;
+    }
+
+    // The pieces requested from a neighbor that is gone or snubbing this peer can be picked again. Neighbors that went
+    // idle because everything they have was already requested are asked right away, since nothing else would make them
+    // request again.
+    public void reassignRequests(int peerID, Set<Integer> released) {
+        System.out.println("Released requests to peer " + peerID + " for pieces " + released);
+        for (Integer neighborID : neighbors.getSuccessfullyConnectedPeers().keySet()) {
+            if (!neighbors.getChokedStatus().contains(neighborID) && !neighbors.hasRequestedPieces(neighborID)
+                    && !isSnubbed(neighborID)) {
+                piecePicker.requestNextPiece(neighborID);
+            }
+        }
+    }
+
+    // Dials a neighbor again after its established connection broke, unless there is nothing left to exchange with it
+    public void reconnect(int peerID) {
+        // A bounded neighbor set fills the slot with whichever peer it picks next instead
+        if (shutDown.get() || isSwarmComplete() || reconnectAttempts <= 0 || neighborSet != null) {
+            return;
+        }
+        if (bitmap.hasAllPieces() && neighbors.getHasCompleteFileNeighbors().contains(peerID)) {
+            return;
+        }
+        PeerInfo info = peers.stream().filter(known -> known.getPeerID() == peerID && known.getPort() != 0).findFirst().orElse(null);
+        if (info == null) {
+            return;
+        }
+        System.out.println("Connection with peer " + peerID + " broke, reconnecting");
+        executor.submit(new SafeRunnable(() -> connectWithRetry(info, reconnectAttempts)));
+    }
+
+    // Stops the whole peer: the listeners, every connection and every background task
+    public void shutdown() {
+        if (!shutDown.compareAndSet(false, true)) {
+            return;
+        }
+        messageManager.reportUploadStatistics();
+        logger.logPipelineStatistics(protocolStage.getMaxQueueDepth(), diskStage.getMaxQueueDepth());
+        if (trackerClient != null) {
+            trackerClient.leave();
+        }
+        try {
+            serverSocket.close();
+            if (unixServerSocket != null) {
+                unixServerSocket.close();
+            }
+            neighbors.flushHaveMessages();
+            messageManager.closeAll();
+        } catch (IOException ignored) {
+        }
+        if (bitmap.hasAllPieces()) {
+            // Shutdown may run on a thread that was already interrupted, which would close the output channel mid-write
+            boolean interrupted = Thread.interrupted();
+            try {
+                long start = System.nanoTime();
+                if (fileManager.assemble()) {
+                    logger.logFileAssembled(storage, fileSize, (System.nanoTime() - start) / 1e9);
+                }
+            } catch (IOException e) {
+                System.out.println("Could not assemble " + fileName + ": " + e.getMessage());
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
                 }
-            } catch (Exception e) {
-                Thread.currentThread().interrupt();
             }
-        }));
+        }
+        fileManager.flush();
+        fileManager.close();
+        trace.close();
+        executor.shutdownNow();
     }
 
     private void createPNHandler() {
         executor.submit(new SafeRunnable(() -> {
             try {
-                while (!Thread.currentThread().isInterrupted() && !serverSocket.isClosed() && neighbors.getHasCompleteFileNeighbors().size() != getAllPeerInfo().size()) {
+                while (!Thread.currentThread().isInterrupted() && serverSocket.isOpen() && !isSwarmComplete()) {
                     if (Thread.currentThread().isInterrupted()) {
                         Thread.currentThread().interrupt();
                         return;
@@ -290,6 +1182,22 @@ public class Peer {
                         Thread.currentThread().interrupt();
                         return;
                     }
+                    uploadScheduler.reportShares();
+
+                    FlightEvents.ChokeRound event = new FlightEvents.ChokeRound();
+                    event.begin();
+                    int slots = numPreferredNeighbors;
+                    if (uploadSlots != null) {
+                        Set<Integer> unchoked = new HashSet<>(neighbors.getPreferredNeighbors());
+                        if (neighbors.getOptimisticNeighbor() != null) {
+                            unchoked.add(neighbors.getOptimisticNeighbor());
+                        }
+                        int numInterested = (int) neighbors.getInterestedNeighbors().stream()
+                                .filter(neighbors.getSuccessfullyConnectedPeers()::containsKey)
+                                .count();
+                        slots = uploadSlots.update(unchoked, numInterested);
+                    }
+                    int numSlots = slots;
 
                     List<Integer> preferredPeerIDs;
                     if (neighbors.getHasCompleteFileNeighbors().contains(peerInfo.getPeerID())) {
@@ -304,7 +1212,7 @@ public class Peer {
                                         Collectors.toList(),
                                         (List<Integer> list) -> {
                                             Collections.shuffle(list);
-                                            return list.stream().limit(numPreferredNeighbors).collect(Collectors.toList());
+                                            return list.stream().limit(numSlots).collect(Collectors.toList());
                                         }));
                     } else {
                         preferredPeerIDs = neighbors.getNumOfPiecesByPeer().entrySet()
@@ -313,10 +1221,12 @@ public class Peer {
                                 .filter((Map.Entry<Integer, Integer> entry) -> neighbors.getInterestedNeighbors().contains(entry.getKey()))
                                 // Only select neighbors that are actually connected
                                 .filter((Map.Entry<Integer, Integer> entry) -> neighbors.getSuccessfullyConnectedPeers().containsKey(entry.getKey()))
+                                // A neighbor snubbing this peer earns no credit for what it sent before
+                                .filter((Map.Entry<Integer, Integer> entry) -> !isSnubbed(entry.getKey()))
                                 // Sort them so that the greatest values are first
                                 .sorted(Map.Entry.<Integer, Integer>comparingByValue().reversed())
                                 // Only get the number of neighbors from the config file
-                                .limit(numPreferredNeighbors)
+                                .limit(numSlots)
                                 .map(Map.Entry::getKey)
                                 .toList();
                     }
@@ -324,42 +1234,64 @@ public class Peer {
                     // Reset the statistics for use next time
                     neighbors.resetNumOfPiecesByPeer();
 
+                    // The new preferred set is recorded before any unchoke goes out so that a request arriving right
+                    // after the unchoke is not rejected
+                    Set<Integer> previouslyPreferredIDs = new HashSet<>(neighbors.getPreferredNeighbors());
+                    neighbors.updatePreferredNeighbors(preferredPeerIDs);
+
                     // If a previous preferred is still preferred -> do nothing
                     // If a previous non-preferred is still non-preferred -> do nothing
 
                     // If a previous non-preferred is now preferred -> send unchoke
+                    List<Integer> unchokedIDs = new ArrayList<>();
                     for (Integer preferredPeerID : preferredPeerIDs) {
-                        if (neighbors.isPreferredNeighbor(preferredPeerID) || Objects.equals(neighbors.getOptimisticNeighbor(), preferredPeerID)) {
+                        if (previouslyPreferredIDs.contains(preferredPeerID) || Objects.equals(neighbors.getOptimisticNeighbor(), preferredPeerID)) {
                             continue; // We don't need to do anything if the neighbor is already preferred
                         }
 
                         // Send unchoke message
                         messageManager.sendUnchoke(preferredPeerID);
+                        unchokedIDs.add(preferredPeerID);
                     }
 
                     // If a previous preferred is no longer preferred -> send choke
-                    for (Integer previouslyPreferredID : neighbors.getPreferredNeighbors()) {
-                        if (!preferredPeerIDs.contains(previouslyPreferredID)) {
+                    List<Integer> chokedIDs = new ArrayList<>();
+                    for (Integer previouslyPreferredID : previouslyPreferredIDs) {
+                        if (!neighbors.isUnchokedNeighbor(previouslyPreferredID)) {
                             messageManager.sendChoke(previouslyPreferredID);
+                            chokedIDs.add(previouslyPreferredID);
                         }
                     }
 
-                    neighbors.updatePreferredNeighbors(preferredPeerIDs);
                     if (!preferredPeerIDs.isEmpty()) {
                         logger.logPreferredNeighbors(preferredPeerIDs);
                     }
+                    event.end();
+                    if (event.shouldCommit()) {
+                        event.peerID = peerInfo.getPeerID();
+                        event.optimistic = false;
+                        event.slots = numSlots;
+                        event.interested = neighbors.getInterestedNeighbors().size();
+                        event.unchoked = joinIDs(unchokedIDs);
+                        event.choked = joinIDs(chokedIDs);
+                        event.commit();
+                    }
 
                 }
             } catch (Exception e) {
                 Thread.currentThread().interrupt();
             }
+            // Every connection may already be gone by the time the swarm completes
+            if (isSwarmComplete()) {
+                shutdown();
+            }
         }));
     }
 
     private void createONHandler() {
         executor.submit(new SafeRunnable(() -> {
             try {
-                while (!Thread.currentThread().isInterrupted() && !serverSocket.isClosed() && neighbors.getHasCompleteFileNeighbors().size() != getAllPeerInfo().size()) {
+                while (!Thread.currentThread().isInterrupted() && serverSocket.isOpen() && !isSwarmComplete()) {
                     if (Thread.currentThread().isInterrupted()) {
                         Thread.currentThread().interrupt();
                         return;
@@ -375,22 +1307,40 @@ public class Peer {
                         return;
                     }
 
+                    FlightEvents.ChokeRound event = new FlightEvents.ChokeRound();
+                    event.begin();
                     List<Integer> ids = neighbors.allChokedAndInterestedNeighbors().stream().toList();
                     if (ids.isEmpty()) {
                         continue;
                     }
+                    // Neighbors snubbing this peer only get the optimistic unchoke if no one else wants it
+                    List<Integer> notSnubbing = ids.stream().filter(id -> !isSnubbed(id)).toList();
+                    if (!notSnubbing.isEmpty()) {
+                        ids = notSnubbing;
+                    }
                     Random random = new Random();
                     int newPeerIndex = random.nextInt(ids.size());
                     int newPeerID = ids.get(newPeerIndex);
 
                     int oldPeerID = neighbors.getOptimisticNeighbor() != null ? neighbors.getOptimisticNeighbor() : -1;
-                    if (oldPeerID != -1 && !neighbors.isPreferredNeighbor(oldPeerID)) {
+                    neighbors.setOptimisticNeighbor(newPeerID);
+                    boolean chokedOld = oldPeerID != -1 && !neighbors.isPreferredNeighbor(oldPeerID);
+                    if (chokedOld) {
                         messageManager.sendChoke(oldPeerID);
                     }
 
                     messageManager.sendUnchoke(newPeerID);
                     logger.logUnchokedOptimisticNeighbor(newPeerID);
-                    neighbors.setOptimisticNeighbor(newPeerID);
+                    event.end();
+                    if (event.shouldCommit()) {
+                        event.peerID = peerInfo.getPeerID();
+                        event.optimistic = true;
+                        event.slots = 1;
+                        event.interested = neighbors.getInterestedNeighbors().size();
+                        event.unchoked = String.valueOf(newPeerID);
+                        event.choked = chokedOld ? String.valueOf(oldPeerID) : "";
+                        event.commit();
+                    }
                 }
             } catch (Exception e) {
                 Thread.currentThread().interrupt();
@@ -398,13 +1348,79 @@ public class Peer {
         }));
     }
 
+    private static String joinIDs(List<Integer> ids) {
+        return ids.stream().map(String::valueOf).collect(Collectors.joining(","));
+    }
+
+    private void createHaveFlusher() {
+        if (!fastExtensions) {
+            return;
+        }
+        executor.submit(new SafeRunnable(() -> {
+            while (!Thread.currentThread().isInterrupted() && serverSocket.isOpen() && !isSwarmComplete()) {
+                try {
+                    TimeUnit.MILLISECONDS.sleep(haveBatchInterval);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                neighbors.flushHaveMessages();
+            }
+        }));
+    }
+
+    private void createStages() {
+        protocolStage.start(executor);
+        diskStage.start(executor);
+        if (pipelineStatsInterval <= 0) {
+            return;
+        }
+        executor.submit(new SafeRunnable(() -> {
+            while (!Thread.currentThread().isInterrupted() && serverSocket.isOpen()) {
+                try {
+                    TimeUnit.SECONDS.sleep(pipelineStatsInterval);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                System.out.println(String.format("Pipeline queues: protocol %d, disk %d, send %d",
+                        protocolStage.getQueueDepth(), diskStage.getQueueDepth(), messageManager.getOutboundQueueDepth()));
+            }
+        }));
+    }
+
+    private void createTrackerAnnouncer() {
+        if (trackerClient == null) {
+            return;
+        }
+        executor.submit(new SafeRunnable(() -> {
+            while (!Thread.currentThread().isInterrupted() && serverSocket.isOpen() && !isSwarmComplete()) {
+                for (MessageManager.Pair<PeerInfo, Boolean> entry : trackerClient.announce()) {
+                    addDiscoveredPeer(entry.first, entry.second);
+                }
+                try {
+                    TimeUnit.SECONDS.sleep(trackerInterval);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }));
+    }
+
     public void start() {
+        // Lets a daemon stopped with Ctrl-C or SIGTERM leave the tracker and close its connections
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown));
+        // The stages run before any connection, since every connection hands its messages to them
+        createStages();
         //Create Senders AKA Client threads
         createSenders();
         //Create Receivers AKA Server threads
         createReceivers();
         createPNHandler();
         createONHandler();
+        createHaveFlusher();
+        createTrackerAnnouncer();
     }
 
     public static class SafeRunnable implements Runnable {
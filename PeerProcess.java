@@ -1,6 +1,15 @@
 public class PeerProcess {
     public static void main(String[] args) {
-        Peer p2p = new Peer(args[0]);
+        // java PeerProcess <peerID> [<hostname> <port> <hasFile>], the optional entry is for peers missing from PeerInfo.cfg
+        // java PeerProcess <firstPeerID>-<lastPeerID> runs every peer of the range in this JVM, for large loopback swarms
+        if (args.length == 1 && args[0].matches("\\d+-\\d+")) {
+            String[] range = args[0].split("-");
+            for (int id = Integer.parseInt(range[0]); id <= Integer.parseInt(range[1]); id++) {
+                new Peer(String.valueOf(id)).start();
+            }
+            return;
+        }
+        Peer p2p = args.length >= 4 ? new Peer(args[0], new String[]{args[1], args[2], args[3]}) : new Peer(args[0]);
         p2p.start();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,101 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+/*
+ * Read-only view of the shared file while it downloads. A read only blocks when the piece under the position is still
+ * missing, and that piece is then fetched ahead of everything else. In streaming mode the pieces just after the
+ * position are downloaded first, so a reader moving forward rarely has to wait.
+ */
+public class PieceChannel implements SeekableByteChannel {
+    private final Peer peer;
+    private long position = 0;
+    private volatile boolean open = true;
+    // The last piece read, since readers usually ask for much less than a piece at a time
+    private int cachedPiece = -1;
+    private byte[] cachedData;
+
+    public PieceChannel(Peer peer) {
+        this.peer = peer;
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+        if (position >= size()) {
+            return -1;
+        }
+
+        int piece = (int) (position / peer.getPieceSize());
+        peer.getPiecePicker().setReaderPosition(piece);
+        if (piece != cachedPiece) {
+            try {
+                peer.getPiecePicker().waitForPiece(piece);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for piece " + piece);
+            }
+            cachedData = peer.getFileManager().readPiece(piece);
+            cachedPiece = piece;
+        }
+
+        int offset = (int) (position - (long) piece * peer.getPieceSize());
+        int length = Math.min(dst.remaining(), cachedData.length - offset);
+        if (length <= 0) {
+            throw new IOException("Could not read piece " + piece);
+        }
+        dst.put(cachedData, offset, length);
+        position += length;
+        return length;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized long position() throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+        return position;
+    }
+
+    @Override
+    public synchronized SeekableByteChannel position(long newPosition) throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("Negative position " + newPosition);
+        }
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() {
+        return peer.getFileSize();
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() {
+        open = false;
+    }
+}
@@ -0,0 +1,211 @@
+import java.util.BitSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/*
+ * Chooses which piece to request from a neighbor or the origin. Pieces a reader is blocked on always come first. Otherwise pieces are
+ * picked at random, or in streaming mode, in order within a window just ahead of the reader and rarest-first beyond it,
+ * so the file can be consumed while it is still downloading.
+ */
+public class PiecePicker {
+    // How many candidate pieces rarest-first compares, so a pick stays cheap for files with millions of pieces
+    private static final int RAREST_FIRST_SAMPLE = 1024;
+    private static final long WAIT_RETRY_MS = 1000;
+
+    private final Peer peer;
+    private final boolean streaming;
+    private final int streamWindow;
+    // How many requests each neighbor may owe at once
+    private final int requestPipeline;
+    private volatile int readerPosition = 0;
+    // Pieces that a reader is currently blocked on
+    private final Set<Integer> waitingPieces = ConcurrentHashMap.newKeySet();
+
+    public PiecePicker(Peer peer, boolean streaming, int streamWindow, int requestPipeline) {
+        this.peer = peer;
+        this.streaming = streaming;
+        this.streamWindow = streamWindow;
+        this.requestPipeline = requestPipeline;
+    }
+
+    // The next piece to request from the neighbor, or -1 if it has nothing this peer still needs
+    public int pickPiece(int neighborID) {
+        Bitmap bitmap = peer.getBitmap();
+        Bitmap neighborBitmap = peer.getNeighbors().getPeerBitfield(neighborID);
+        for (int piece : waitingPieces) {
+            // A piece a reader waits on may be requested from a second neighbor, like in endgame
+            if (neighborBitmap.hasPiece(piece) && !bitmap.hasPiece(piece) && !peer.getNeighbors().isRequestedFrom(neighborID, piece)) {
+                return piece;
+            }
+        }
+
+        BitSet requested = peer.getNeighbors().getAllRequestedPieces();
+        if (peer.getDuplicatePieces() != null) {
+            // A piece identical to one in flight arrives with it
+            peer.getDuplicatePieces().addGroupsOf(requested);
+        }
+        if (peer.getErasureCoder() != null) {
+            return peer.getErasureCoder().pickPiece(bitmap, neighborBitmap, requested);
+        }
+        if (!streaming) {
+            return bitmap.getRandomRemainingPiece(neighborBitmap, requested);
+        }
+
+        int position = readerPosition;
+        int piece = bitmap.getNextRemainingPiece(neighborBitmap, requested, position, position + streamWindow);
+        if (piece == -1) {
+            piece = pickRarest(neighborBitmap, requested);
+        }
+        if (piece == -1) {
+            // Endgame: everything left is requested from someone, so request the earliest again, but not from the
+            // neighbor that already owes it
+            BitSet owed = peer.getNeighbors().getRequestedPieces(neighborID);
+            piece = bitmap.getNextRemainingPiece(neighborBitmap, owed, position, peer.getNumPieces());
+            if (piece == -1) {
+                piece = bitmap.getNextRemainingPiece(neighborBitmap, owed, 0, position);
+            }
+        }
+        return piece;
+    }
+
+    // The next piece to fetch from the origin, which has the pieces in originBitmap, or -1. Pieces a reader waits on come
+    // first, then rarest-first, so the origin mostly supplies what few neighbors have. Once every remaining piece is
+    // requested, a piece a neighbor still owes is fetched, in case that neighbor stalled.
+    public int pickOriginPiece(Bitmap originBitmap) {
+        Bitmap bitmap = peer.getBitmap();
+        for (int piece : waitingPieces) {
+            if (originBitmap.hasPiece(piece) && !bitmap.hasPiece(piece) && !peer.getNeighbors().isRequestedFrom(WebSeed.ORIGIN_ID, piece)) {
+                return piece;
+            }
+        }
+
+        BitSet requested = peer.getNeighbors().getAllRequestedPieces();
+        if (peer.getDuplicatePieces() != null) {
+            peer.getDuplicatePieces().addGroupsOf(requested);
+        }
+        int piece = pickRarest(originBitmap, requested);
+        if (piece == -1) {
+            piece = bitmap.getRandomRemainingPiece(originBitmap, requested);
+        }
+        // Not a piece the origin just sent that is still being written
+        return piece != -1 && peer.getNeighbors().isRequestedFrom(WebSeed.ORIGIN_ID, piece) ? -1 : piece;
+    }
+
+    // Compares up to RAREST_FIRST_SAMPLE candidates from a random starting point and returns the one the fewest
+    // neighbors have
+    private int pickRarest(Bitmap neighborBitmap, BitSet requested) {
+        Bitmap bitmap = peer.getBitmap();
+        int numPieces = peer.getNumPieces();
+        int start = ThreadLocalRandom.current().nextInt(numPieces);
+        int end = numPieces;
+        boolean wrapped = false;
+        int best = -1;
+        int bestAvailability = Integer.MAX_VALUE;
+
+        int piece = bitmap.getNextRemainingPiece(neighborBitmap, requested, start, end);
+        for (int compared = 0; compared < RAREST_FIRST_SAMPLE; ) {
+            if (piece == -1) {
+                if (wrapped) {
+                    break;
+                }
+                wrapped = true;
+                end = start;
+                piece = bitmap.getNextRemainingPiece(neighborBitmap, requested, 0, end);
+                continue;
+            }
+            int availability = getAvailability(piece);
+            if (availability < bestAvailability) {
+                best = piece;
+                bestAvailability = availability;
+                if (availability <= 1) {
+                    break; // Only this neighbor has it
+                }
+            }
+            compared++;
+            piece = bitmap.getNextRemainingPiece(neighborBitmap, requested, piece + 1, end);
+        }
+        return best;
+    }
+
+    private int getAvailability(int piece) {
+        int count = 0;
+        for (Integer neighborID : peer.getNeighbors().getSuccessfullyConnectedPeers().keySet()) {
+            if (peer.getNeighbors().getPeerBitfield(neighborID).hasPiece(piece)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // Sends the neighbor a request for the next piece, if it has one this peer still needs, and more until it owes
+    // RequestPipeline pieces, so it has the next one queued while the last is on its way. In endgame, where the pick is
+    // a piece someone else already owes, one request at a time is enough.
+    public void requestNextPiece(int neighborID) {
+        if (peer.getChainReplicator() != null) {
+            return; // Pieces are pushed down the chain instead
+        }
+        if (peer.isSnubbed(neighborID)) {
+            return; // SnubDetector gives it another chance later
+        }
+        do {
+            int nextPiece = pickPiece(neighborID);
+            if (nextPiece == -1 || peer.getNeighbors().isRequestedFrom(neighborID, nextPiece)) {
+                return;
+            }
+            boolean endgame = !peer.getNeighbors().getOtherRequesters(neighborID, nextPiece).isEmpty();
+
+            System.out.println("Sent a 'Receive' Message for peer " + neighborID + " , piece: " + nextPiece);
+            peer.getMessageManager().sendRequest(neighborID, nextPiece);
+            if (endgame) {
+                return;
+            }
+        } while (peer.getNeighbors().getNumRequestedPieces(neighborID) < requestPipeline);
+    }
+
+    public void setReaderPosition(int piece) {
+        readerPosition = piece;
+    }
+
+    // Blocks until the piece is downloaded. While waiting, the piece is requested from an unchoked neighbor that has it,
+    // ahead of everything else, and the request is repeated in case that neighbor chokes or leaves.
+    public void waitForPiece(int piece) throws InterruptedException {
+        if (peer.getBitmap().hasPiece(piece)) {
+            return;
+        }
+        waitingPieces.add(piece);
+        try {
+            while (!peer.getBitmap().hasPiece(piece)) {
+                requestWaitingPiece(piece);
+                synchronized (this) {
+                    if (!peer.getBitmap().hasPiece(piece)) {
+                        wait(WAIT_RETRY_MS);
+                    }
+                }
+            }
+        } finally {
+            waitingPieces.remove(piece);
+        }
+    }
+
+    public void onPieceReceived(int piece) {
+        if (waitingPieces.contains(piece)) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    private void requestWaitingPiece(int piece) {
+        Neighbors neighbors = peer.getNeighbors();
+        for (Integer neighborID : neighbors.getSuccessfullyConnectedPeers().keySet()) {
+            if (!neighbors.getChokedStatus().contains(neighborID) && neighbors.getPeerBitfield(neighborID).hasPiece(piece)) {
+                if (!neighbors.isRequestedFrom(neighborID, piece)) {
+                    System.out.println("Escalated piece " + piece + " for a waiting reader, requesting it from peer " + neighborID);
+                    peer.getMessageManager().sendRequest(neighborID, piece);
+                }
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,31 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*
+ * Where the pieces of a file are kept while a peer downloads and serves them. FileManager works out piece lengths and
+ * which file a piece belongs to, and a store only moves whole pieces in and out. Reads and writes of different pieces
+ * may happen on several threads at once. The implementation is chosen with Storage in Common.cfg:
+ *
+ *   mmap    - MappedPieceStore, the file itself mapped in windows (default)
+ *   memory  - MemoryPieceStore, off-heap buffers that never touch the disk until the file is assembled
+ *   sharded - ShardedPieceStore, pieces striped across several directories or disks
+ */
+public interface PieceStore {
+    // Reserves room for every piece up front, so running out of space shows up before the download starts
+    void preallocate() throws IOException;
+
+    byte[] read(int piece, int length) throws IOException;
+
+    // Writes the data's remaining bytes without moving its position, so one buffer can be written to several pieces
+    void write(int piece, ByteBuffer data) throws IOException;
+
+    // Makes every written piece durable, as far as the store can be
+    void flush() throws IOException;
+
+    void close() throws IOException;
+
+    // Whether the store already is the output file, so there is nothing to assemble once the download completes
+    default boolean isOutputFile() {
+        return false;
+    }
+}
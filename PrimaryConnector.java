@@ -1,22 +1,32 @@
 import java.io.IOException;
-import java.net.Socket;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 public class PrimaryConnector implements Runnable {
 
-    private final Socket socket;
+    private final Connection connection;
     private final Peer peer;
     private final int expectedPeerID;
     private final boolean madeTCPConnection;
+    // Set once both handshakes went through. Only such a connection is dialed again when it breaks.
+    private volatile boolean established = false;
+    // Requests from this neighbor waiting for the upload scheduler or the disk stage, and how many of them the neighbor
+    // cancelled after the scheduler dispatched them. Both count requests per piece, since a piece can be requested again
+    // before the first copy went out, and one CANCEL only takes back one request.
+    private final Map<Integer, Integer> pendingUploads = new HashMap<>();
+    private final Map<Integer, Integer> cancelledUploads = new HashMap<>();
 
-    public PrimaryConnector(Socket socket, Peer peer, int expectedPeerID, boolean madeTCPConnection) throws IOException {
+    public PrimaryConnector(Connection connection, Peer peer, int expectedPeerID, boolean madeTCPConnection) throws IOException {
         this.peer = peer;
         this.expectedPeerID = expectedPeerID;
-        this.socket = socket;
+        this.connection = connection;
 
         // This tracks whether this was an incoming connection or whether this was a created connection. This is the
-        // initial concept of Sender/Receiver. This only matters for logging purposes during the handshake. Besides that,
-        // it is pointless
+        // initial concept of Sender/Receiver. An incoming connection has already been identified by its handshake before
+        // this connector starts, so only created connections still wait for one. Besides that, it is only for logging
         this.madeTCPConnection = madeTCPConnection;
     }
 
@@ -28,11 +38,16 @@ public class PrimaryConnector implements Runnable {
             System.out.println(expectedPeerID + " Send Hanshake");
             peer.getMessageManager().sendHandshakeMessage(expectedPeerID);
             // Receive Shake Message
-            System.out.println(expectedPeerID + " Receive Hanshake");
-            int connectedPeerID = peer.getMessageManager().receivedValidHandshakeMessage(expectedPeerID, expectedPeerID);
-            if (connectedPeerID == -1) return;
+            int connectedPeerID = expectedPeerID;
+            if (madeTCPConnection) {
+                System.out.println(expectedPeerID + " Receive Hanshake");
+                connectedPeerID = peer.getMessageManager().receivedValidHandshakeMessage(expectedPeerID, expectedPeerID);
+                if (connectedPeerID == -1) return;
+            }
 
+            established = true;
             System.out.println(expectedPeerID + " Log Connection");
+            peer.getTrace().record(TraceRecorder.Event.HANDSHAKE, connectedPeerID);
             // Log Handshake Done
             if (madeTCPConnection) {
                 peer.getLogger().logMakesConnectionTCP(connectedPeerID);
@@ -40,128 +55,45 @@ public class PrimaryConnector implements Runnable {
                 peer.getLogger().logConnectedFromTCP(connectedPeerID);
             }
 
-            // Send Bitmap
+            // Send Bitmap. The neighbor is registered first so that a piece arriving while the bitmap is being sent is
+            // still announced with a HAVE instead of being missing from both.
             System.out.println(expectedPeerID + " Send Bitmap");
-            peer.getMessageManager().sendBitmap(connectedPeerID);
             peer.getNeighbors().addHandshakedNeighbor(connectedPeerID);
+            peer.getMessageManager().sendAvailability(connectedPeerID);
+            if (peer.getSuperSeeder() != null) {
+                peer.getSuperSeeder().onConnected(connectedPeerID);
+            }
+            if (peer.getChainReplicator() != null) {
+                peer.getChainReplicator().onConnected(connectedPeerID);
+            }
+            if (peer.getMessageManager().supports(connectedPeerID, MessageManager.Capability.PEER_EXCHANGE)) {
+                peer.getMessageManager().sendPeerExchange(connectedPeerID, peer.getNeighbors().getPeerExchangeEntries(connectedPeerID));
+            }
 
-            while (!Thread.currentThread().isInterrupted() && peer.getNeighbors().getHasCompleteFileNeighbors().size() != peer.getAllPeerInfo().size()) {
+            while (!Thread.currentThread().isInterrupted() && !peer.isSwarmComplete()) {
                 try {
-                    MessageManager.ActualMessage message = peer.getMessageManager().receiveActualMessage(connectedPeerID);
+                    MessageManager.ActualMessage message = peer.getMessageManager().receiveActualMessage(connectedPeerID, connection);
                     if (Thread.currentThread().isInterrupted()) {
                         Thread.currentThread().interrupt();
                         continue;
                     }
                     if (message == null) {
-                        continue;
+                        break; // The neighbor closed the connection
                     }
-                    switch (message.type()) {
-                        case CHOKE:
-                            peer.getLogger().logChoking(connectedPeerID);
-                            break;
-                        case UNCHOKE:
-                            peer.getLogger().logUnchoking(connectedPeerID);
-
-                            int randomPiece = peer.getBitmap().getRandomRemainingPiece(peer.getNeighbors().getPeerBitfield(connectedPeerID));
-
-                            if (randomPiece == -1) {
-                                continue;
-                            }
-
-                            System.out.println("Sent a 'Receive' Message for peer " + connectedPeerID + " , piece: " + randomPiece);
-                            peer.getMessageManager().sendRequest(connectedPeerID, randomPiece);
-                            break;
-                        case INTERESTED:
-                            peer.getNeighbors().setInterestOfNeighbor(connectedPeerID, true);
-                            peer.getLogger().logReceivedInterested(connectedPeerID);
-                            break;
-                        case NOT_INTERESTED:
-                            peer.getNeighbors().setInterestOfNeighbor(connectedPeerID, false);
-                            peer.getLogger().logReceivedNotInterested(connectedPeerID);
-                            break;
-                        case HAVE:
-                            int pieceID = peer.getMessageManager().getHave(message);
-                            if (pieceID < 0 || pieceID > peer.getNumPieces()) {
-                                continue; // Just skip this if the piece comes in bad
-                            }
-                            peer.getNeighbors().updatePeerBitfield(connectedPeerID, pieceID);
-                            peer.getLogger().logReceivedHave(connectedPeerID, pieceID);
-
-                            if (peer.getBitmap().containsInterestedPieces(peer.getNeighbors().getPeerBitfield(connectedPeerID))) {
-                                peer.getMessageManager().sendInterested(connectedPeerID);
-                            } else {
-                                peer.getMessageManager().sendNotInterested(connectedPeerID);
-                            }
-
-                            // Check if this was the last piece for that peer
-                            if (peer.getNeighbors().getPeerBitfield(connectedPeerID).hasAllPieces()) {
-                                peer.getNeighbors().setHasCompleteFileNeighbors(connectedPeerID);
-                            }
-                            break;
-                        case BITFIELD:
-                            Bitmap bitmap = peer.getMessageManager().getBitmap(message);
-                            System.out.println(expectedPeerID + " Received Bitmap");
-
-                            // Save Bitmap
-                            peer.getNeighbors().updatePeerBitfield(connectedPeerID, bitmap);
-                            if (peer.getNeighbors().getPeerBitfield(connectedPeerID).hasAllPieces()) {
-                                peer.getNeighbors().setHasCompleteFileNeighbors(connectedPeerID);
-                            }
-
-                            // Decide if interested
-                            if (peer.getBitmap().containsInterestedPieces(bitmap)) {
-                                peer.getMessageManager().sendInterested(connectedPeerID);
-                            } else {
-                                peer.getMessageManager().sendNotInterested(connectedPeerID);
-                            }
-
-                            break;
-                        case REQUEST:
-                            int requestedPiece = peer.getMessageManager().getReceive(message);
-                            if (requestedPiece < 0 || requestedPiece > peer.getNumPieces()) {
-                                continue; // Just skip this if the piece comes in bad
-                            }
-                            byte[] requestedData = peer.getFileManager().readPiece(requestedPiece);
-
-                            System.out.println("Sent a 'Piece' Message for peer " + connectedPeerID + " , piece: " + requestedPiece);
-                            peer.getMessageManager().sendPiece(connectedPeerID, requestedPiece, requestedData);
-                            break;
-                        case PIECE:
-
-                            MessageManager.Pair<Integer, byte[]> content = peer.getMessageManager().getPiece(message);
-
-                            int receivedPiece = content.first;
-                            byte[] receivedData = content.second;
-                            if (receivedPiece < 0 || receivedPiece > peer.getNumPieces()) {
-                                continue; // Just skip this if the piece comes in bad
-                            }
-
-                            peer.getFileManager().writePiece(receivedPiece, receivedData);
-                            peer.getBitmap().markPieceAsReceived(receivedPiece);
-                            peer.getNeighbors().incrementNumOfPiecesByPeer(connectedPeerID);
-                            peer.getLogger().logDownloadedPiece(connectedPeerID, receivedPiece, peer.getBitmap().getBitset().cardinality());
-                            peer.getNeighbors().sendHaveMessages(receivedPiece);
-                            peer.getNeighbors().sendNotInterestedMessages();
-
-                            if (peer.getBitmap().hasAllPieces()) {
-                                peer.getNeighbors().setHasCompleteFileNeighbors(peer.getPeerInfo().getPeerID());
-                                peer.getLogger().logDownloadedFile();
-                            }
-
-                            // If still interested, request another piece. If not, send not interested
-                            if (peer.getBitmap().containsInterestedPieces(peer.getNeighbors().getPeerBitfield(connectedPeerID))) {
-                                int randomNextPiece = peer.getBitmap().getRandomRemainingPiece(peer.getNeighbors().getPeerBitfield(connectedPeerID));
-
-                                if (randomNextPiece == -1) {
-                                    continue;
-                                }
-
-                                peer.getMessageManager().sendRequest(connectedPeerID, randomNextPiece);
-                            } else {
-                                peer.getMessageManager().sendNotInterested(connectedPeerID);
-                            }
-
-                            break;
+                    // Reserving room for the answer to a REQUEST here means a neighbor that does not take its pieces
+                    // stops being read, instead of filling the stages behind this thread
+                    if (message.type() == MessageManager.MessageType.REQUEST) {
+                        peer.getMessageManager().reserveUpload(connectedPeerID);
+                    }
+                    int messagePeerID = connectedPeerID;
+                    try {
+                        peer.getProtocolStage().submit(connectedPeerID, () -> handleMessage(messagePeerID, message));
+                    } catch (InterruptedException e) {
+                        // A piece that never reaches the protocol stage still holds its receive buffer
+                        if (message.data() != null) {
+                            peer.getMessageManager().releasePiece(message.data());
+                        }
+                        throw e;
                     }
                 } catch (Exception e) {
                     break;
@@ -207,14 +139,458 @@ public class PrimaryConnector implements Runnable {
             * */
 
         } finally {
+            // The neighbor is only removed after the messages already handed to the protocol stage, so that its last
+            // HAVEs still count
+            System.out.println("Performing Close for " + expectedPeerID);
+            try {
+                peer.getProtocolStage().submit(expectedPeerID, this::close);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                close();
+            }
+        }
+    }
+
+    // Only this connection is closed. The peer itself stops once the whole swarm has the file, unless it runs as a
+    // daemon, in which case it keeps serving whoever connects next. Shutting down first lets the outbound queues drain,
+    // so the HAVE that completed the swarm is not dropped along with this connection. Otherwise the side that dialed
+    // the neighbor dials it again, since the other side may not know where it listens.
+    private void close() {
+        if (peer.isSwarmComplete()) {
+            peer.shutdown();
+        }
+        if (peer.disconnect(expectedPeerID, connection) && madeTCPConnection && established) {
+            peer.reconnect(expectedPeerID);
+        }
+    }
+
+    // Runs on the protocol stage, in the order the neighbor's messages were read
+    private void handleMessage(int connectedPeerID, MessageManager.ActualMessage message) {
+        try {
+            dispatch(connectedPeerID, message);
+        } catch (Exception e) {
+            // Same as a failure on the reading thread: the connection is dropped and its reader cleans up
+            closeConnection();
+        }
+        stopIfSwarmComplete();
+    }
+
+    private void dispatch(int connectedPeerID, MessageManager.ActualMessage message) throws Exception {
+        switch (message.type()) {
+            case CHOKE:
+                peer.getLogger().logChoking(connectedPeerID);
+                peer.getTrace().record(TraceRecorder.Event.CHOKED, connectedPeerID);
+                peer.getNeighbors().setChokedStatus(connectedPeerID, true);
+
+                // Without the fast extensions a choke silently drops every outstanding request. With them,
+                // the neighbor answers each dropped request with REJECT_REQUEST instead.
+                if (!peer.getMessageManager().supports(connectedPeerID, MessageManager.Capability.FAST_EXTENSIONS)) {
+                    peer.getNeighbors().clearRequestedPieces(connectedPeerID);
+                }
+                break;
+            case UNCHOKE:
+                peer.getLogger().logUnchoking(connectedPeerID);
+                peer.getTrace().record(TraceRecorder.Event.UNCHOKED, connectedPeerID);
+                peer.getNeighbors().setChokedStatus(connectedPeerID, false);
+                requestNextPiece(connectedPeerID);
+                break;
+            case INTERESTED:
+                peer.getNeighbors().setInterestOfNeighbor(connectedPeerID, true);
+                peer.getLogger().logReceivedInterested(connectedPeerID);
+                break;
+            case NOT_INTERESTED:
+                peer.getNeighbors().setInterestOfNeighbor(connectedPeerID, false);
+                peer.getLogger().logReceivedNotInterested(connectedPeerID);
+                break;
+            case HAVE:
+                receiveHaves(connectedPeerID, List.of(peer.getMessageManager().getHave(message)));
+                break;
+            case BATCH_HAVE:
+                receiveHaves(connectedPeerID, peer.getMessageManager().getBatchHave(message));
+                break;
+            case BITFIELD:
+                System.out.println(expectedPeerID + " Received Bitmap");
+                receiveBitmap(connectedPeerID, peer.getMessageManager().getBitmap(message));
+                break;
+            case HAVE_ALL:
+                System.out.println(expectedPeerID + " Received Have All");
+                receiveBitmap(connectedPeerID, new Bitmap(peer.getNumPieces(), peer.getNumSourcePieces(), true));
+                break;
+            case HAVE_NONE:
+                System.out.println(expectedPeerID + " Received Have None");
+                receiveBitmap(connectedPeerID, new Bitmap(peer.getNumPieces(), peer.getNumSourcePieces(), false));
+                break;
+            case REQUEST:
+                int requestedPiece = peer.getMessageManager().getReceive(message);
+                if (requestedPiece < 0 || requestedPiece >= peer.getNumPieces()) {
+                    peer.getMessageManager().releaseUpload(connectedPeerID);
+                    return; // Just skip this if the piece comes in bad
+                }
+
+                // A neighbor that supports the fast extensions is told explicitly that a choked request is
+                // dropped, so it can release the piece instead of waiting for it. A super-seed also drops
+                // requests for pieces it never revealed to the neighbor, with or without the fast extensions.
+                boolean fastExtensions = peer.getMessageManager().supports(connectedPeerID, MessageManager.Capability.FAST_EXTENSIONS);
+                boolean unrevealed = peer.getSuperSeeder() != null && !peer.getSuperSeeder().allowUpload(connectedPeerID, requestedPiece);
+                if (unrevealed || (fastExtensions && !peer.getNeighbors().isUnchokedNeighbor(connectedPeerID))) {
+                    peer.getMessageManager().releaseUpload(connectedPeerID);
+                    if (fastExtensions) {
+                        peer.getMessageManager().sendRejectRequest(connectedPeerID, requestedPiece);
+                    }
+                    break;
+                }
+                addPendingUpload(requestedPiece);
+                int chokesSent = peer.getMessageManager().getChokesSent(connectedPeerID);
+                if (!peer.getUploadScheduler().submit(connection, requestedPiece,
+                        diskTask(() -> uploadPiece(connectedPeerID, requestedPiece, chokesSent)))) {
+                    takePendingUpload(requestedPiece);
+                    peer.getMessageManager().releaseUpload(connectedPeerID);
+                }
+                break;
+            case CANCEL:
+                // A request still waiting for the scheduler or the disk is dropped. Once the piece has been read it is
+                // sent anyway.
+                int cancelledPiece = peer.getMessageManager().getIndex(message);
+                if (peer.getUploadScheduler().cancel(connection, cancelledPiece)) {
+                    takePendingUpload(cancelledPiece);
+                    peer.getMessageManager().releaseUpload(connectedPeerID);
+                } else {
+                    cancelPendingUpload(cancelledPiece);
+                }
+                System.out.println("Received a 'Cancel' Message from peer " + connectedPeerID + " , piece: " + cancelledPiece);
+                break;
+            case REJECT_REQUEST:
+                int rejectedPiece = peer.getMessageManager().getIndex(message);
+                peer.getNeighbors().removeRequestedPiece(connectedPeerID, rejectedPiece);
+                System.out.println("Received a 'Reject Request' Message from peer " + connectedPeerID + " , piece: " + rejectedPiece);
+
+                if (!peer.getNeighbors().getChokedStatus().contains(connectedPeerID)) {
+                    requestNextPiece(connectedPeerID);
+                }
+                break;
+            case PEER_EXCHANGE:
+                for (MessageManager.Pair<Peer.PeerInfo, Boolean> entry : peer.getMessageManager().getPeerExchange(message)) {
+                    peer.addDiscoveredPeer(entry.first, entry.second);
+                }
+                break;
+            case PIECE:
+
+                MessageManager.Pair<Integer, ByteBuffer> content = peer.getMessageManager().getPiece(connectedPeerID, message);
+
+                int receivedPiece = content.first;
+                ByteBuffer receivedData = content.second;
+                // The receive buffer goes back to the pool here unless the disk task took it over
+                boolean handedToDisk = false;
+                try {
+                    if (receivedPiece < 0 || receivedPiece >= peer.getNumPieces()) {
+                        return; // Just skip this if the piece comes in bad
+                    }
+                    peer.getTrace().record(TraceRecorder.Event.PIECE_RECEIVED, connectedPeerID, receivedPiece, message.length());
+                    if (peer.getSnubDetector() != null) {
+                        peer.getSnubDetector().onPieceReceived(connectedPeerID);
+                    }
+
+                    // In endgame the same piece can be requested from several neighbors. Only the first copy is
+                    // kept and the neighbors that still owe it are told to cancel.
+                    if (peer.getBitmap().hasPiece(receivedPiece)) {
+                        peer.getNeighbors().removeRequestedPiece(connectedPeerID, receivedPiece);
+                        requestNextOrNotInterested(connectedPeerID);
+                    } else {
+                        if (peer.getChainReplicator() != null) {
+                            // Forwarded pieces outlive the receive buffer
+                            byte[] copy = new byte[receivedData.remaining()];
+                            receivedData.duplicate().get(copy);
+                            peer.getChainReplicator().onPieceReceived(receivedPiece, copy);
+                        }
+                        // The piece stays requested until it is written, so it is not picked again in the meantime
+                        submitToDisk(connectedPeerID, () -> {
+                            try {
+                                storePiece(connectedPeerID, receivedPiece, receivedData);
+                            } finally {
+                                peer.getMessageManager().releasePiece(receivedData);
+                            }
+                        });
+                        handedToDisk = true;
+                    }
+                } finally {
+                    if (!handedToDisk) {
+                        peer.getMessageManager().releasePiece(receivedData);
+                    }
+                }
+                break;
+        }
+    }
+
+    // Runs on the disk stage
+    private void uploadPiece(int connectedPeerID, int requestedPiece, int chokesSent) {
+        if (takePendingUpload(requestedPiece)) {
+            peer.getMessageManager().releaseUpload(connectedPeerID);
+            peer.getUploadScheduler().onSkipped(connection);
+            return;
+        }
+        // With pipelined requests, a request of a neighbor that is choked now is dropped instead of taking the unchoked
+        // neighbors' share. A neighbor with the fast extensions is told so. Others only know once a choke was sent
+        // after their request, since they forget their requests when it arrives.
+        boolean fastExtensions = peer.getMessageManager().supports(connectedPeerID, MessageManager.Capability.FAST_EXTENSIONS);
+        if (peer.isRequestPipelined() && !peer.getNeighbors().isUnchokedNeighbor(connectedPeerID)
+                && (fastExtensions || peer.getMessageManager().getChokesSent(connectedPeerID) != chokesSent)) {
+            peer.getMessageManager().releaseUpload(connectedPeerID);
+            peer.getUploadScheduler().onSkipped(connection);
+            if (fastExtensions) {
+                peer.getMessageManager().sendRejectRequest(connectedPeerID, requestedPiece);
+            }
+            return;
+        }
+        byte[] requestedData;
+        try {
+            requestedData = peer.getFileManager().readPiece(requestedPiece);
+        } catch (RuntimeException e) {
+            peer.getUploadScheduler().onSkipped(connection);
+            throw e;
+        }
+
+        System.out.println("Sent a 'Piece' Message for peer " + connectedPeerID + " , piece: " + requestedPiece);
+        if (!peer.getMessageManager().sendRequestedPiece(connectedPeerID, connection, requestedPiece, requestedData)) {
+            peer.getUploadScheduler().onSkipped(connection);
+            return;
+        }
+        peer.getTrace().record(TraceRecorder.Event.PIECE_SERVED, connectedPeerID, requestedPiece, requestedData.length);
+        if (peer.getNeighborSet() != null) {
+            peer.getNeighborSet().onPieceExchanged(connectedPeerID);
+        }
+        if (peer.getSuperSeeder() != null) {
+            peer.getSuperSeeder().onUpload(requestedPiece);
+        }
+    }
+
+    private synchronized void addPendingUpload(int piece) {
+        pendingUploads.merge(piece, 1, Integer::sum);
+    }
+
+    // Marks one pending request for the piece as cancelled, unless every pending one already is
+    private synchronized void cancelPendingUpload(int piece) {
+        if (pendingUploads.getOrDefault(piece, 0) > cancelledUploads.getOrDefault(piece, 0)) {
+            cancelledUploads.merge(piece, 1, Integer::sum);
+        }
+    }
+
+    // Takes one pending request for the piece off the books and returns whether it was cancelled
+    private synchronized boolean takePendingUpload(int piece) {
+        decrement(pendingUploads, piece);
+        return decrement(cancelledUploads, piece);
+    }
+
+    private static boolean decrement(Map<Integer, Integer> counts, int piece) {
+        Integer count = counts.get(piece);
+        if (count == null) {
+            return false;
+        }
+        if (count == 1) {
+            counts.remove(piece);
+        } else {
+            counts.put(piece, count - 1);
+        }
+        return true;
+    }
+
+    // Runs on the disk stage. Everything that depends on the piece being on disk happens here as well, rather than back
+    // on the protocol stage, so the disk stage never waits for the stage that feeds it.
+    private void storePiece(int connectedPeerID, int receivedPiece, ByteBuffer receivedData) {
+        storePiece(peer, connectedPeerID, receivedPiece, receivedData);
+        requestNextOrNotInterested(connectedPeerID);
+    }
+
+    // The part of storing a piece that does not depend on a connection, shared with the pieces fetched from the origin,
+    // which come from WebSeed.ORIGIN_ID, and the pieces rebuilt from their erasure coding group, which come from
+    // ErasureCoder.REBUILT_ID
+    static void storePiece(Peer peer, int connectedPeerID, int receivedPiece, ByteBuffer receivedData) {
+        peer.beginStore();
+        try {
+            FlightEvents.PieceCompleted event = new FlightEvents.PieceCompleted();
+            event.begin();
+            peer.getFileManager().writePiece(receivedPiece, receivedData);
+            peer.getNeighbors().removeRequestedPiece(connectedPeerID, receivedPiece);
+            if (peer.getNeighborSet() != null) {
+                peer.getNeighborSet().onPieceExchanged(connectedPeerID);
+            }
+            if (peer.getBitmap().markPieceAsReceived(receivedPiece)) {
+                peer.getPiecePicker().onPieceReceived(receivedPiece);
+                if (peer.getChainReplicator() != null) {
+                    peer.getChainReplicator().onPieceStored();
+                }
+                if (connectedPeerID == WebSeed.ORIGIN_ID) {
+                    peer.getLogger().logDownloadedPieceFromOrigin(receivedPiece, peer.getBitmap().getNumPiecesHeld());
+                } else if (connectedPeerID == ErasureCoder.REBUILT_ID) {
+                    System.out.println("Rebuilt piece " + receivedPiece + " from its erasure coding group");
+                } else {
+                    peer.getNeighbors().incrementNumOfPiecesByPeer(connectedPeerID);
+                    peer.getLogger().logDownloadedPiece(connectedPeerID, receivedPiece, peer.getBitmap().getNumPiecesHeld());
+                }
+                List<Integer> storedPieces = new ArrayList<>();
+                storedPieces.add(receivedPiece);
+                if (peer.getDuplicatePieces() != null) {
+                    for (int filledPiece : peer.getDuplicatePieces().fill(receivedPiece, receivedData)) {
+                        System.out.println("Filled piece " + filledPiece + " from identical piece " + receivedPiece);
+                        peer.getPiecePicker().onPieceReceived(filledPiece);
+                        storedPieces.add(filledPiece);
+                    }
+                }
+                peer.getNeighbors().sendHaveMessages(storedPieces);
+                if (peer.getErasureCoder() != null && connectedPeerID != ErasureCoder.REBUILT_ID) {
+                    // A rebuilt piece completes nothing else in its group, so this goes one level deep
+                    for (int storedPiece : storedPieces) {
+                        peer.getErasureCoder().onPieceStored(storedPiece).forEach((rebuiltPiece, rebuiltData) ->
+                                storePiece(peer, ErasureCoder.REBUILT_ID, rebuiltPiece, rebuiltData));
+                    }
+                }
+                peer.getNeighbors().sendNotInterestedMessages();
+                for (int storedPiece : storedPieces) {
+                    cancelDuplicateRequests(peer, connectedPeerID, storedPiece);
+                }
+
+                if (peer.markDownloadComplete()) {
+                    // Batched HAVEs are flushed right away so neighbors learn of the completion promptly
+                    peer.getNeighbors().flushHaveMessages();
+                    peer.getNeighbors().setHasCompleteFileNeighbors(peer.getPeerInfo().getPeerID());
+                    peer.getLogger().logDownloadedFile();
+                    peer.getFileManager().flush();
+                    peer.getTrace().record(TraceRecorder.Event.COMPLETED, connectedPeerID);
+                    FlightEvents.DownloadCompleted completed = new FlightEvents.DownloadCompleted();
+                    if (completed.shouldCommit()) {
+                        completed.peerID = peer.getPeerInfo().getPeerID();
+                        completed.fileSize = peer.getFileSize();
+                        completed.elapsed = System.nanoTime() - peer.getStartTime();
+                        completed.commit();
+                    }
+                    peer.getMessageManager().reportDownloadStatistics();
+                    if (peer.getErasureCoder() != null) {
+                        peer.getErasureCoder().reportDecodeStatistics();
+                    }
+                    if (peer.getDuplicatePieces() != null) {
+                        peer.getDuplicatePieces().reportStatistics();
+                    }
+                    if (peer.getWebSeed() != null) {
+                        peer.getWebSeed().reportStatistics();
+                    }
+                }
+                event.end();
+                if (event.shouldCommit()) {
+                    event.peerID = peer.getPeerInfo().getPeerID();
+                    event.neighborID = connectedPeerID;
+                    event.pieceIndex = receivedPiece;
+                    event.bytes = receivedData.remaining();
+                    event.piecesHeld = peer.getBitmap().getNumPiecesHeld();
+                    event.commit();
+                }
+            }
+        } finally {
+            peer.endStore();
+        }
+    }
+
+    private void submitToDisk(int connectedPeerID, Runnable task) throws InterruptedException {
+        peer.getDiskStage().submit(connectedPeerID, diskTask(task));
+    }
+
+    // A failed disk task closes the connection, so the neighbor is cleaned up like any other that went away
+    private Runnable diskTask(Runnable task) {
+        return () -> {
             try {
-                System.out.println("Performing Close for " + expectedPeerID);
-                socket.close();
-                peer.getServerSocket().close();
-                peer.getMessageManager().closeAll();
-            } catch (IOException ignored) {
+                task.run();
+            } catch (Exception e) {
+                closeConnection();
+            }
+            stopIfSwarmComplete();
+        };
+    }
+
+    // The reading threads only check for completion between messages, and may be blocked reading from neighbors that
+    // have nothing left to send, so the message that completed the swarm stops the peer
+    private void stopIfSwarmComplete() {
+        stopIfSwarmComplete(peer);
+    }
+
+    // Also used for the pieces fetched from the origin, which no reading thread sees at all
+    static void stopIfSwarmComplete(Peer peer) {
+        if (peer.isSwarmComplete()) {
+            peer.shutdown();
+        }
+    }
+
+    private void closeConnection() {
+        try {
+            connection.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    // If still interested, request another piece, unless requests are pipelined and the neighbor choked us in the
+    // meantime, so it would not serve it. If not, send not interested
+    private void requestNextOrNotInterested(int connectedPeerID) {
+        if (peer.isInterestedIn(peer.getNeighbors().getPeerBitfield(connectedPeerID))) {
+            if (!peer.isRequestPipelined() || !peer.getNeighbors().getChokedStatus().contains(connectedPeerID)) {
+                requestNextPiece(connectedPeerID);
+            }
+        } else {
+            peer.getMessageManager().sendNotInterested(connectedPeerID);
+        }
+    }
+
+    private void requestNextPiece(int connectedPeerID) {
+        peer.getPiecePicker().requestNextPiece(connectedPeerID);
+    }
+
+    private static void cancelDuplicateRequests(Peer peer, int connectedPeerID, int receivedPiece) {
+        for (Integer otherPeerID : peer.getNeighbors().getOtherRequesters(connectedPeerID, receivedPiece)) {
+            if (peer.getMessageManager().supports(otherPeerID, MessageManager.Capability.FAST_EXTENSIONS)) {
+                peer.getNeighbors().removeRequestedPiece(otherPeerID, receivedPiece);
+                peer.getMessageManager().sendCancel(otherPeerID, receivedPiece);
+            }
+        }
+    }
+
+    private void receiveHaves(int connectedPeerID, List<Integer> pieceIDs) {
+        for (int pieceID : pieceIDs) {
+            if (pieceID < 0 || pieceID >= peer.getNumPieces()) {
+                continue; // Just skip this if the piece comes in bad
             }
+            peer.getNeighbors().updatePeerBitfield(connectedPeerID, pieceID);
+            peer.getLogger().logReceivedHave(connectedPeerID, pieceID);
+            peer.getTrace().record(TraceRecorder.Event.HAVE_RECEIVED, connectedPeerID, pieceID, 0);
+        }
+        if (peer.getSuperSeeder() != null) {
+            peer.getSuperSeeder().onHave(connectedPeerID, pieceIDs);
+        }
+
+        if (peer.isInterestedIn(peer.getNeighbors().getPeerBitfield(connectedPeerID))) {
+            peer.getMessageManager().sendInterested(connectedPeerID);
+
+            // A neighbor that already unchoked us and has nothing in flight only sends more once it is asked
+            if (!peer.getNeighbors().getChokedStatus().contains(connectedPeerID) && !peer.getNeighbors().hasRequestedPieces(connectedPeerID)) {
+                requestNextPiece(connectedPeerID);
+            }
+        } else {
+            peer.getMessageManager().sendNotInterested(connectedPeerID);
+        }
+
+        // Check if this was the last piece for that peer
+        if (peer.getNeighbors().getPeerBitfield(connectedPeerID).hasAllPieces()) {
+            peer.getNeighbors().setHasCompleteFileNeighbors(connectedPeerID);
+        }
+    }
+
+    private void receiveBitmap(int connectedPeerID, Bitmap bitmap) {
+        // Save Bitmap
+        peer.getNeighbors().updatePeerBitfield(connectedPeerID, bitmap);
+        if (peer.getNeighbors().getPeerBitfield(connectedPeerID).hasAllPieces()) {
+            peer.getNeighbors().setHasCompleteFileNeighbors(connectedPeerID);
+        }
+
+        // Decide if interested
+        if (peer.isInterestedIn(bitmap)) {
+            peer.getMessageManager().sendInterested(connectedPeerID);
+        } else {
+            peer.getMessageManager().sendNotInterested(connectedPeerID);
         }
-        peer.getExecutor().shutdownNow();
     }
 }
@@ -0,0 +1,84 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/*
+ * Pieces striped round-robin across one shard file per directory: piece i goes to shard i mod n, at slot i / n. With
+ * the directories on different disks, the disk stage's workers read and write several disks at once. Each shard is a
+ * FileChannel used only with positional reads and writes, which are safe on several threads without locking.
+ */
+public class ShardedPieceStore implements PieceStore {
+    private final int pieceSize;
+    private final int numPieces;
+    private final FileChannel[] shards;
+
+    public ShardedPieceStore(List<String> directories, String fileName, int pieceSize, int numPieces) throws IOException {
+        this.pieceSize = pieceSize;
+        this.numPieces = numPieces;
+        this.shards = new FileChannel[directories.size()];
+        for (int shard = 0; shard < shards.length; shard++) {
+            Path directory = Path.of(directories.get(shard));
+            Files.createDirectories(directory);
+            shards[shard] = FileChannel.open(directory.resolve(fileName + ".shard" + shard),
+                    StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        }
+    }
+
+    private long offset(int piece) {
+        return (long) (piece / shards.length) * pieceSize;
+    }
+
+    // Sets every shard to the length of the pieces it will hold
+    @Override
+    public void preallocate() throws IOException {
+        for (int shard = 0; shard < shards.length; shard++) {
+            int piecesInShard = (numPieces - shard + shards.length - 1) / shards.length;
+            long length = (long) piecesInShard * pieceSize;
+            if (length > 0 && shards[shard].size() < length) {
+                shards[shard].write(ByteBuffer.allocate(1), length - 1);
+            }
+        }
+    }
+
+    @Override
+    public byte[] read(int piece, int length) throws IOException {
+        byte[] data = new byte[length];
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        FileChannel shard = shards[piece % shards.length];
+        long offset = offset(piece);
+        while (buffer.hasRemaining()) {
+            if (shard.read(buffer, offset + buffer.position()) == -1) {
+                break; // Never written, the rest reads as zeros
+            }
+        }
+        return data;
+    }
+
+    @Override
+    public void write(int piece, ByteBuffer data) throws IOException {
+        ByteBuffer buffer = data.duplicate();
+        FileChannel shard = shards[piece % shards.length];
+        long offset = offset(piece) - buffer.position();
+        while (buffer.hasRemaining()) {
+            shard.write(buffer, offset + buffer.position());
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        for (FileChannel shard : shards) {
+            shard.force(false);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (FileChannel shard : shards) {
+            shard.close();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Finds neighbors that unchoked this peer but stopped sending pieces. A neighbor is snubbing this peer once it has had
+ * a request outstanding for SnubTimeout seconds without a single piece arriving. Its requests are cancelled and moved to
+ * other neighbors, nothing more is requested from it, it is no longer chosen as a preferred neighbor for the pieces it
+ * once sent, and optimistic unchokes go to other neighbors first. The first piece it sends clears it, and so does
+ * another SnubTimeout, after which it is asked for pieces again in case it was only slow.
+ */
+public class SnubDetector implements Runnable {
+    private static final long CHECK_INTERVAL_MS = 1000;
+
+    private final Peer peer;
+    private final long timeoutNanos;
+    // When each neighbor last sent a piece, or started owing one if it sent nothing since
+    private final Map<Integer, Long> waitingSince = new ConcurrentHashMap<>();
+    private final Set<Integer> snubbed = ConcurrentHashMap.newKeySet();
+
+    public SnubDetector(Peer peer, int timeoutSeconds) {
+        this.peer = peer;
+        this.timeoutNanos = TimeUnit.SECONDS.toNanos(timeoutSeconds);
+    }
+
+    public boolean isSnubbed(int peerID) {
+        return snubbed.contains(peerID);
+    }
+
+    public void onPieceReceived(int peerID) {
+        waitingSince.put(peerID, System.nanoTime());
+        if (snubbed.remove(peerID)) {
+            peer.getLogger().logSnubRecovered(peerID);
+        }
+    }
+
+    public void onDisconnected(int peerID) {
+        waitingSince.remove(peerID);
+        snubbed.remove(peerID);
+    }
+
+    @Override
+    public void run() {
+        while (!Thread.currentThread().isInterrupted() && peer.getServerSocket().isOpen() && !peer.isSwarmComplete()) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(CHECK_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (!peer.getBitmap().hasAllPieces()) {
+                check();
+            }
+        }
+    }
+
+    private void check() {
+        Neighbors neighbors = peer.getNeighbors();
+        long now = System.nanoTime();
+        for (Integer neighborID : neighbors.getSuccessfullyConnectedPeers().keySet()) {
+            if (snubbed.contains(neighborID)) {
+                // Nothing is requested from a snubbing neighbor, so it could not clear itself with a piece
+                long snubbedSince = waitingSince.computeIfAbsent(neighborID, id -> now);
+                if (now - snubbedSince >= timeoutNanos && snubbed.remove(neighborID)) {
+                    waitingSince.remove(neighborID);
+                    peer.getLogger().logSnubRecovered(neighborID);
+                    if (!neighbors.getChokedStatus().contains(neighborID)) {
+                        peer.getPiecePicker().requestNextPiece(neighborID);
+                    }
+                }
+                continue;
+            }
+            // The clock only runs while the neighbor has us unchoked and owes us a piece
+            if (neighbors.getChokedStatus().contains(neighborID) || !neighbors.hasRequestedPieces(neighborID)) {
+                waitingSince.remove(neighborID);
+                continue;
+            }
+            long since = waitingSince.computeIfAbsent(neighborID, id -> now);
+            if (now - since < timeoutNanos) {
+                continue;
+            }
+            waitingSince.put(neighborID, now);
+            Set<Integer> moved = neighbors.takeRequestedPieces(neighborID);
+            if (snubbed.add(neighborID)) {
+                peer.getLogger().logSnubbed(neighborID, TimeUnit.NANOSECONDS.toSeconds(now - since), moved.size());
+            }
+            if (peer.getMessageManager().supports(neighborID, MessageManager.Capability.FAST_EXTENSIONS)) {
+                for (Integer piece : moved) {
+                    peer.getMessageManager().sendCancel(neighborID, piece);
+                }
+            }
+            if (!moved.isEmpty()) {
+                peer.reassignRequests(neighborID, moved);
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * One stage of the message pipeline: a fixed number of workers, each with its own bounded queue. Tasks with the same key
+ * always go to the same worker, so the messages of one neighbor are handled in the order they arrived. Submitting blocks
+ * while that worker's queue is full, which pushes back on the stage before it instead of buffering without limit.
+ */
+public class Stage {
+    private final String name;
+    private final List<BlockingQueue<Runnable>> queues = new ArrayList<>();
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+
+    public Stage(String name, int workers, int queueSize) {
+        this.name = name;
+        for (int i = 0; i < workers; i++) {
+            queues.add(new ArrayBlockingQueue<>(queueSize));
+        }
+    }
+
+    public void start(ExecutorService executor) {
+        for (BlockingQueue<Runnable> queue : queues) {
+            executor.submit(new Peer.SafeRunnable(() -> {
+                try {
+                    while (!Thread.currentThread().isInterrupted()) {
+                        // A failing task only loses itself, the worker goes on with the next one
+                        new Peer.SafeRunnable(queue.take()).run();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+        }
+    }
+
+    public void submit(int key, Runnable task) throws InterruptedException {
+        BlockingQueue<Runnable> queue = queues.get(Math.floorMod(key, queues.size()));
+        queue.put(task);
+        maxQueueDepth.accumulateAndGet(queue.size(), Math::max);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getQueueDepth() {
+        int depth = 0;
+        for (BlockingQueue<Runnable> queue : queues) {
+            depth += queue.size();
+        }
+        return depth;
+    }
+
+    public int getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+}
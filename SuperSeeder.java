@@ -0,0 +1,148 @@
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Super-seeding for a peer that starts with the complete file. Instead of advertising every piece, the seed shows each
+ * neighbor only a few pieces at a time and reveals a new one once a revealed piece has been seen spreading, i.e. once
+ * another neighbor announces it with a HAVE. Pieces are chosen so that the seed uploads each piece once before any
+ * piece a second time. When every piece has been uploaded at least once the swarm holds a full distributed copy, and
+ * the seed goes back to advertising everything.
+ */
+public class SuperSeeder {
+    private final Peer peer;
+    private final int piecesPerNeighbor;
+    // Pieces revealed to each neighbor that have not yet been seen spreading to anyone else
+    private final Map<Integer, Set<Integer>> revealed = new ConcurrentHashMap<>();
+    // Every piece ever revealed to each neighbor, the only pieces it is allowed to request
+    private final Map<Integer, Set<Integer>> everRevealed = new ConcurrentHashMap<>();
+    private final int[] timesRevealed;
+    private final int[] timesUploaded;
+    private int piecesUploaded = 0;
+    private volatile boolean finished = false;
+
+    public SuperSeeder(Peer peer, int piecesPerNeighbor) {
+        this.peer = peer;
+        this.piecesPerNeighbor = piecesPerNeighbor;
+        this.timesRevealed = new int[peer.getNumPieces()];
+        this.timesUploaded = new int[peer.getNumPieces()];
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    public synchronized void onConnected(int peerID) {
+        revealed.put(peerID, new HashSet<>());
+        everRevealed.put(peerID, new HashSet<>());
+        if (!finished) {
+            revealMore(peerID);
+        }
+    }
+
+    public synchronized void onDisconnected(int peerID) {
+        revealed.remove(peerID);
+        everRevealed.remove(peerID);
+    }
+
+    // A revealed piece counts as spread once some other neighbor announces it, or once no other neighbor still lacks it
+    public synchronized void onHave(int fromPeerID, Iterable<Integer> pieceIDs) {
+        if (finished) {
+            return;
+        }
+        for (int pieceID : pieceIDs) {
+            for (Map.Entry<Integer, Set<Integer>> entry : revealed.entrySet()) {
+                int peerID = entry.getKey();
+                if (!entry.getValue().contains(pieceID)) {
+                    continue;
+                }
+                if (peerID != fromPeerID || !isLackedByOthers(peerID, pieceID)) {
+                    entry.getValue().remove(pieceID);
+                    revealMore(peerID);
+                }
+            }
+        }
+    }
+
+    // Any piece revealed to the neighbor is served, even if someone else got it first. Refusing it would only make the
+    // neighbor ask again, since it was told this peer has it. Uploading each piece once first is up to pickPiece.
+    public synchronized boolean allowUpload(int peerID, int pieceID) {
+        if (finished) {
+            return true;
+        }
+        return everRevealed.getOrDefault(peerID, Set.of()).contains(pieceID);
+    }
+
+    public synchronized void onUpload(int pieceID) {
+        if (finished) {
+            return;
+        }
+        if (timesUploaded[pieceID]++ == 0) {
+            piecesUploaded++;
+        }
+        if (piecesUploaded == timesUploaded.length) {
+            finish();
+        }
+    }
+
+    private void finish() {
+        finished = true;
+        peer.getLogger().logSuperSeedingFinished();
+        for (Integer peerID : revealed.keySet()) {
+            peer.getMessageManager().sendAvailability(peerID);
+        }
+    }
+
+    private void revealMore(int peerID) {
+        Set<Integer> pieces = revealed.get(peerID);
+        while (pieces.size() < piecesPerNeighbor) {
+            int pieceID = pickPiece(peerID);
+            if (pieceID == -1) {
+                return;
+            }
+            pieces.add(pieceID);
+            everRevealed.get(peerID).add(pieceID);
+            timesRevealed[pieceID]++;
+            System.out.println("Super-seed revealed piece " + pieceID + " to peer " + peerID);
+            peer.getMessageManager().sendHave(peerID, pieceID);
+        }
+    }
+
+    // Prefers pieces never uploaded, then pieces revealed the fewest times, then the rarest among neighbors
+    private int pickPiece(int peerID) {
+        Bitmap neighborBitmap = peer.getNeighbors().getPeerBitfield(peerID);
+        int best = -1;
+        long bestScore = Long.MAX_VALUE;
+        for (int pieceID = 0; pieceID < timesRevealed.length; pieceID++) {
+            if (neighborBitmap.hasPiece(pieceID) || everRevealed.get(peerID).contains(pieceID)) {
+                continue;
+            }
+            long score = ((long) Math.min(timesUploaded[pieceID], 1) << 40) + ((long) timesRevealed[pieceID] << 20) + availability(pieceID);
+            if (score < bestScore) {
+                bestScore = score;
+                best = pieceID;
+            }
+        }
+        return best;
+    }
+
+    private int availability(int pieceID) {
+        int count = 0;
+        for (Integer peerID : revealed.keySet()) {
+            if (peer.getNeighbors().getPeerBitfield(peerID).hasPiece(pieceID)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private boolean isLackedByOthers(int peerID, int pieceID) {
+        for (Integer otherID : revealed.keySet()) {
+            if (otherID != peerID && !peer.getNeighbors().getPeerBitfield(otherID).hasPiece(pieceID)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,313 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/*
+ * Offline analysis of the binary traces written by TraceRecorder. Merges the traces of every peer into one timeline
+ * and reports how long each piece took to spread, the throughput of every link over time, how long peers spent choked,
+ * and the chain of transfers that decided when the last peer finished.
+ *
+ * Usage: java TraceAnalyzer trace_peer_1001.bin trace_peer_1002.bin ...
+ */
+public class TraceAnalyzer {
+    private static final int MAX_INTERVALS = 20;
+
+    public record Record(long time, int peerID, int otherPeerID, TraceRecorder.Event event, int piece, int bytes) {}
+
+    private final List<Record> records;
+    private final long start;
+
+    public TraceAnalyzer(List<Record> records) {
+        this.records = records;
+        this.records.sort(Comparator.comparingLong(Record::time));
+        this.start = records.isEmpty() ? 0 : records.get(0).time();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.out.println("Usage: java TraceAnalyzer <trace file>...");
+            return;
+        }
+        List<Record> records = new ArrayList<>();
+        for (String file : args) {
+            records.addAll(read(Path.of(file)));
+        }
+        TraceAnalyzer analyzer = new TraceAnalyzer(records);
+        System.out.println(String.format("%d events from %d trace files over %.3f s", records.size(), args.length, analyzer.seconds(analyzer.end())));
+        analyzer.reportCompletion();
+        analyzer.reportPropagation();
+        analyzer.reportLinkThroughput();
+        analyzer.reportTimeChoked();
+        analyzer.reportUploadSlots();
+        analyzer.reportCriticalPath();
+    }
+
+    // Reads the records of one trace file in the order they were written, skipping any the ring overwrote and any that
+    // were only partly written
+    public static List<Record> read(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt(0) != TraceRecorder.MAGIC || buffer.getInt(4) != TraceRecorder.VERSION) {
+                throw new IOException(path + " is not a trace file");
+            }
+            int recordSize = buffer.getInt(8);
+            int capacity = buffer.getInt(12);
+            long count = buffer.getLong(TraceRecorder.COUNT_OFFSET);
+            if (count == 0) {
+                count = recoverCount(buffer, recordSize, capacity);
+            }
+            long first = Math.max(0, count - capacity);
+
+            TraceRecorder.Event[] events = TraceRecorder.Event.values();
+            List<Record> records = new ArrayList<>();
+            for (long sequence = first; sequence < count; sequence++) {
+                int offset = TraceRecorder.HEADER_SIZE + (int) (sequence % capacity * recordSize);
+                int event = buffer.get(offset + 16);
+                if (buffer.getInt(offset + TraceRecorder.SEQUENCE_OFFSET) != (int) (sequence + 1)
+                        || event < 0 || event >= events.length) {
+                    continue;
+                }
+                records.add(new Record(buffer.getLong(offset), buffer.getInt(offset + 8), buffer.getInt(offset + 12),
+                        events[event], buffer.getInt(offset + 20), buffer.getInt(offset + 24)));
+            }
+            return records;
+        }
+    }
+
+    // A peer that crashed or was killed never wrote the count. The newest record that sits in its own slot tells it.
+    private static long recoverCount(ByteBuffer buffer, int recordSize, int capacity) {
+        long count = 0;
+        for (int slot = 0; slot < capacity; slot++) {
+            int offset = TraceRecorder.HEADER_SIZE + slot * recordSize;
+            long sequence = Integer.toUnsignedLong(buffer.getInt(offset + TraceRecorder.SEQUENCE_OFFSET)) - 1;
+            if (sequence >= 0 && sequence % capacity == slot) {
+                count = Math.max(count, sequence + 1);
+            }
+        }
+        return count;
+    }
+
+    private long end() {
+        return records.isEmpty() ? 0 : records.get(records.size() - 1).time();
+    }
+
+    private double seconds(long time) {
+        return (time - start) / 1e9;
+    }
+
+    // When each peer first received each piece, i.e. when it obtained it
+    private Map<Integer, Map<Integer, Record>> firstReceptions() {
+        Map<Integer, Map<Integer, Record>> received = new TreeMap<>();
+        for (Record record : records) {
+            if (record.event() == TraceRecorder.Event.PIECE_RECEIVED) {
+                received.computeIfAbsent(record.peerID(), id -> new HashMap<>()).putIfAbsent(record.piece(), record);
+            }
+        }
+        return received;
+    }
+
+    private void reportCompletion() {
+        System.out.println();
+        System.out.println("Completion");
+        for (Record record : records) {
+            if (record.event() == TraceRecorder.Event.COMPLETED) {
+                System.out.println(String.format("  %d completed at %.3f s", record.peerID(), seconds(record.time())));
+            }
+        }
+    }
+
+    // From the first time a piece was served to the time the last peer obtained it
+    private void reportPropagation() {
+        Map<Integer, Long> firstServed = new HashMap<>();
+        Map<Integer, Long> lastObtained = new HashMap<>();
+        for (Record record : records) {
+            if (record.event() == TraceRecorder.Event.PIECE_SERVED) {
+                firstServed.putIfAbsent(record.piece(), record.time());
+            }
+        }
+        for (Map<Integer, Record> pieces : firstReceptions().values()) {
+            for (Record record : pieces.values()) {
+                lastObtained.merge(record.piece(), record.time(), Math::max);
+                firstServed.merge(record.piece(), record.time(), Math::min);
+            }
+        }
+
+        List<long[]> latencies = new ArrayList<>(); // piece, latency
+        for (Map.Entry<Integer, Long> entry : lastObtained.entrySet()) {
+            latencies.add(new long[]{entry.getKey(), entry.getValue() - firstServed.get(entry.getKey())});
+        }
+        latencies.sort(Comparator.comparingLong(latency -> latency[1]));
+
+        System.out.println();
+        System.out.println("Piece propagation (first served until the last peer has it)");
+        if (latencies.isEmpty()) {
+            System.out.println("  no pieces were transferred");
+            return;
+        }
+        System.out.println(String.format("  %d pieces: min %.3f s, median %.3f s, p90 %.3f s, max %.3f s", latencies.size(),
+                latencies.get(0)[1] / 1e9, percentile(latencies, 0.5) / 1e9, percentile(latencies, 0.9) / 1e9,
+                latencies.get(latencies.size() - 1)[1] / 1e9));
+        StringBuilder slowest = new StringBuilder("  slowest:");
+        for (int i = latencies.size() - 1; i >= Math.max(0, latencies.size() - 5); i--) {
+            slowest.append(String.format(" piece %d (%.3f s)", latencies.get(i)[0], latencies.get(i)[1] / 1e9));
+        }
+        System.out.println(slowest);
+    }
+
+    private static long percentile(List<long[]> sorted, double fraction) {
+        return sorted.get((int) Math.min(sorted.size() - 1, Math.round(fraction * (sorted.size() - 1))))[1];
+    }
+
+    // Bytes received over each link, in up to MAX_INTERVALS intervals of whole seconds
+    private void reportLinkThroughput() {
+        long intervalNanos = Math.max(1, (long) Math.ceil(seconds(end()) / MAX_INTERVALS)) * 1_000_000_000L;
+        int numIntervals = (int) ((end() - start) / intervalNanos) + 1;
+        Map<String, long[]> links = new TreeMap<>();
+        for (Record record : records) {
+            if (record.event() == TraceRecorder.Event.PIECE_RECEIVED) {
+                String link = record.otherPeerID() + " -> " + record.peerID();
+                links.computeIfAbsent(link, l -> new long[numIntervals])[(int) ((record.time() - start) / intervalNanos)] += record.bytes();
+            }
+        }
+
+        System.out.println();
+        System.out.println(String.format("Link throughput (KB/s per %d s interval)", intervalNanos / 1_000_000_000L));
+        for (Map.Entry<String, long[]> link : links.entrySet()) {
+            long total = 0;
+            StringBuilder series = new StringBuilder();
+            for (long bytes : link.getValue()) {
+                total += bytes;
+                series.append(String.format(" %6.0f", bytes / 1024.0 / (intervalNanos / 1e9)));
+            }
+            System.out.println(String.format("  %s  %8.2f MB |%s", link.getKey(), total / 1024.0 / 1024.0, series));
+        }
+    }
+
+    // A peer counts as choked by a neighbor from the handshake until the first UNCHOKE, and after every CHOKE
+    private void reportTimeChoked() {
+        Map<String, Long> chokedSince = new HashMap<>();
+        Map<String, Long> connectedSince = new HashMap<>();
+        Map<String, long[]> totals = new TreeMap<>(); // time choked, time connected
+        Map<Integer, Long> lastEvent = new HashMap<>();
+        for (Record record : records) {
+            lastEvent.put(record.peerID(), record.time());
+        }
+
+        for (Record record : records) {
+            String link = record.peerID() + " by " + record.otherPeerID();
+            switch (record.event()) {
+                case HANDSHAKE:
+                    connectedSince.put(link, record.time());
+                    chokedSince.put(link, record.time());
+                    break;
+                case CHOKED:
+                    chokedSince.putIfAbsent(link, record.time());
+                    break;
+                case UNCHOKED:
+                    Long since = chokedSince.remove(link);
+                    if (since != null) {
+                        totals.computeIfAbsent(link, l -> new long[2])[0] += record.time() - since;
+                    }
+                    break;
+                case DISCONNECTED:
+                    closeLink(link, record.time(), chokedSince, connectedSince, totals);
+                    break;
+                default:
+            }
+        }
+        for (String link : new ArrayList<>(connectedSince.keySet())) {
+            closeLink(link, lastEvent.get(Integer.parseInt(link.split(" ")[0])), chokedSince, connectedSince, totals);
+        }
+
+        System.out.println();
+        System.out.println("Time choked (peer by neighbor, while connected)");
+        for (Map.Entry<String, long[]> entry : totals.entrySet()) {
+            long[] total = entry.getValue();
+            System.out.println(String.format("  %s: %.3f s of %.3f s (%.0f%%)", entry.getKey(), total[0] / 1e9, total[1] / 1e9,
+                    total[1] == 0 ? 0 : 100.0 * total[0] / total[1]));
+        }
+    }
+
+    // How each peer with adaptive unchoke slots changed its number of preferred neighbors, and its upload rate then
+    private void reportUploadSlots() {
+        Map<Integer, StringBuilder> changes = new TreeMap<>();
+        Map<Integer, Integer> lastSlots = new HashMap<>();
+        for (Record record : records) {
+            if (record.event() == TraceRecorder.Event.UPLOAD_SLOTS
+                    && !Integer.valueOf(record.piece()).equals(lastSlots.put(record.peerID(), record.piece()))) {
+                changes.computeIfAbsent(record.peerID(), id -> new StringBuilder()).append(String.format(" %.1fs:%d (%.0f KB/s)",
+                        seconds(record.time()), record.piece(), record.bytes() / 1024.0));
+            }
+        }
+        if (changes.isEmpty()) {
+            return;
+        }
+        System.out.println();
+        System.out.println("Upload slots (time: preferred neighbors, upload rate)");
+        for (Map.Entry<Integer, StringBuilder> entry : changes.entrySet()) {
+            System.out.println("  " + entry.getKey() + ":" + entry.getValue());
+        }
+    }
+
+    private static void closeLink(String link, long time, Map<String, Long> chokedSince, Map<String, Long> connectedSince,
+                                  Map<String, long[]> totals) {
+        long[] total = totals.computeIfAbsent(link, l -> new long[2]);
+        Long choked = chokedSince.remove(link);
+        if (choked != null) {
+            total[0] += time - choked;
+        }
+        Long connected = connectedSince.remove(link);
+        if (connected != null) {
+            total[1] += time - connected;
+        }
+    }
+
+    // Walks back from the last peer to finish: the last piece it obtained, who it got that piece from, when that peer
+    // obtained it, and so on back to a peer that had it from the start
+    private void reportCriticalPath() {
+        System.out.println();
+        System.out.println("Critical path to the last completion");
+        Record last = null;
+        for (Record record : records) {
+            if (record.event() == TraceRecorder.Event.COMPLETED) {
+                last = record;
+            }
+        }
+        if (last == null) {
+            System.out.println("  no peer completed");
+            return;
+        }
+
+        Map<Integer, Map<Integer, Record>> received = firstReceptions();
+        Map<String, Long> requestTimes = new HashMap<>();
+        for (Record record : records) {
+            if (record.event() == TraceRecorder.Event.REQUEST_SENT) {
+                requestTimes.put(record.peerID() + "/" + record.otherPeerID() + "/" + record.piece(), record.time());
+            }
+        }
+
+        System.out.println(String.format("  %8.3f s  %d completed", seconds(last.time()), last.peerID()));
+        Record step = received.getOrDefault(last.peerID(), Map.of()).values().stream()
+                .max(Comparator.comparingLong(Record::time)).orElse(null);
+        TreeSet<Integer> visited = new TreeSet<>();
+        while (step != null && visited.add(step.peerID())) {
+            Long requested = requestTimes.get(step.peerID() + "/" + step.otherPeerID() + "/" + step.piece());
+            System.out.println(String.format("  %8.3f s  %d obtained piece %d from %d%s", seconds(step.time()), step.peerID(),
+                    step.piece(), step.otherPeerID(), requested == null ? "" : String.format(" (requested at %.3f s)", seconds(requested))));
+            Record source = received.getOrDefault(step.otherPeerID(), Map.of()).get(step.piece());
+            if (source == null) {
+                System.out.println(String.format("  %8s    %d had piece %d from the start", "", step.otherPeerID(), step.piece()));
+            }
+            step = source;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Compact binary event trace, written to trace_peer_<id>.bin through a memory mapped ring of fixed-size records. A record
+ * costs a few absolute puts into the mapping, with no locking, formatting or system call, so tracing can stay on during
+ * real transfers. When the ring is full the oldest records are overwritten. TraceAnalyzer reads the files back.
+ *
+ * Header (64 bytes): magic, version, record size, capacity, peer ID (ints), then the number of records ever written
+ * (long) at offset 24, which is written when the recorder is closed.
+ * Record (32 bytes): wall-clock time in nanoseconds (long), this peer's ID, the other peer's ID (ints), the event
+ * (byte), 3 bytes of padding, the piece index and the number of bytes (ints), then the record's sequence number plus
+ * one (int). The sequence number is written last, so a trace whose peer was killed before it could write the count is
+ * still read up to its last complete record.
+ */
+public class TraceRecorder {
+    public static final int MAGIC = 0x50325054; // "P2PT"
+    public static final int VERSION = 2;
+    public static final int HEADER_SIZE = 64;
+    public static final int RECORD_SIZE = 32;
+    public static final int COUNT_OFFSET = 24;
+    public static final int SEQUENCE_OFFSET = 28;
+
+    public enum Event {
+        HANDSHAKE, // Connection established with the other peer
+        CHOKED, // The other peer choked this one
+        UNCHOKED, // The other peer unchoked this one
+        REQUEST_SENT,
+        PIECE_RECEIVED, // Bytes are the bytes on the wire
+        PIECE_SERVED, // Bytes are the piece length
+        HAVE_RECEIVED,
+        COMPLETED, // This peer has the whole file
+        DISCONNECTED,
+        UPLOAD_SLOTS // Other peer -1. Piece is the number of preferred neighbors chosen, bytes the upload rate in bytes per second
+    }
+
+    private final int peerID;
+    private final int capacity;
+    private final MappedByteBuffer buffer;
+    private final AtomicLong count = new AtomicLong();
+    // Timestamps are wall-clock so traces from different machines line up, but advance with nanoTime for resolution
+    private final long epochNanos = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+    private final long startNanos = System.nanoTime();
+
+    // A recorder that was not enabled records nothing
+    public TraceRecorder(int peerID, boolean enabled, int capacity) {
+        this.peerID = peerID;
+        // One mapping holds at most 2 GB, which also keeps record offsets within an int
+        this.capacity = Math.max(1, Math.min(capacity, (Integer.MAX_VALUE - HEADER_SIZE) / RECORD_SIZE));
+        MappedByteBuffer mapped = null;
+        if (enabled) {
+            try (FileChannel channel = FileChannel.open(Path.of("trace_peer_" + peerID + ".bin"),
+                    StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) this.capacity * RECORD_SIZE);
+                mapped.putInt(0, MAGIC).putInt(4, VERSION).putInt(8, RECORD_SIZE).putInt(12, this.capacity).putInt(16, peerID);
+            } catch (IOException e) {
+                System.out.println("Could not create trace file, tracing is off: " + e.getMessage());
+                mapped = null;
+            }
+        }
+        this.buffer = mapped;
+    }
+
+    public void record(Event event, int otherPeerID, int piece, int bytes) {
+        if (buffer == null) {
+            return;
+        }
+        long sequence = count.getAndIncrement();
+        int offset = HEADER_SIZE + (int) (sequence % capacity * RECORD_SIZE);
+        buffer.putLong(offset, epochNanos + System.nanoTime() - startNanos)
+                .putInt(offset + 8, peerID)
+                .putInt(offset + 12, otherPeerID)
+                .put(offset + 16, (byte) event.ordinal())
+                .putInt(offset + 20, piece)
+                .putInt(offset + 24, bytes)
+                .putInt(offset + SEQUENCE_OFFSET, (int) (sequence + 1));
+    }
+
+    public void record(Event event, int otherPeerID) {
+        record(event, otherPeerID, -1, 0);
+    }
+
+    // The mapping is written back by the OS anyway, this only makes sure it happened before the peer exits. The count is
+    // only written here, since records are written by several threads at once and may finish out of order.
+    public void close() {
+        if (buffer != null) {
+            buffer.putLong(COUNT_OFFSET, count.get());
+            buffer.force();
+        }
+    }
+}
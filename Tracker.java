@@ -0,0 +1,131 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Lightweight tracker that peers register with and announce their progress to. Each announce is answered with a random
+ * subset of the other registered peers, so a peer only needs its own entry in PeerInfo.cfg to join a swarm.
+ *
+ * The protocol is one text request per connection:
+ *  ANNOUNCE <peerID> <host> <port> <numPiecesHeld> <numPieces> <numWant>
+ *      -> PEER <peerID> <host> <port> <complete 0/1>   (up to numWant lines)
+ *      -> END
+ *  LEAVE <peerID>
+ *      -> END
+ *
+ * Peers that stop announcing are forgotten after the expiry time.
+ */
+public class Tracker {
+
+    public static class Registration {
+        private final int peerID;
+        private final String hostname;
+        private final int port;
+        private volatile int numPiecesHeld;
+        private volatile int numPieces;
+        private volatile long lastAnnounce;
+
+        public Registration(int peerID, String hostname, int port) {
+            this.peerID = peerID;
+            this.hostname = hostname;
+            this.port = port;
+        }
+
+        public boolean isComplete() {
+            return numPieces > 0 && numPiecesHeld == numPieces;
+        }
+    }
+
+    private final int port;
+    private final long expiryMillis;
+    private final Map<Integer, Registration> registrations = new ConcurrentHashMap<>();
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    public Tracker(int port, long expiryMillis) {
+        this.port = port;
+        this.expiryMillis = expiryMillis;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = Integer.parseInt(args[0]);
+        long expirySeconds = args.length > 1 ? Long.parseLong(args[1]) : 60;
+        new Tracker(port, TimeUnit.SECONDS.toMillis(expirySeconds)).start();
+    }
+
+    public void start() throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(port)) {
+            System.out.println("Tracker listening on port " + port);
+            while (!Thread.currentThread().isInterrupted()) {
+                Socket socket = serverSocket.accept();
+                executor.submit(new Peer.SafeRunnable(() -> handle(socket)));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void handle(Socket socket) {
+        try (socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             PrintWriter out = new PrintWriter(socket.getOutputStream(), true, StandardCharsets.UTF_8)) {
+            socket.setSoTimeout(5000);
+            String line = in.readLine();
+            if (line == null) {
+                return;
+            }
+
+            String[] tokens = line.split(" ");
+            switch (tokens[0]) {
+                case "ANNOUNCE":
+                    for (Registration registration : announce(tokens)) {
+                        out.println(String.format("PEER %d %s %d %d", registration.peerID, registration.hostname,
+                                registration.port, registration.isComplete() ? 1 : 0));
+                    }
+                    break;
+                case "LEAVE":
+                    registrations.remove(Integer.parseInt(tokens[1]));
+                    System.out.println("Tracker : peer " + tokens[1] + " left");
+                    break;
+                default:
+                    System.out.println("Tracker : unknown request " + line);
+            }
+            out.println("END");
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Tracker : failed to handle request: " + e);
+        }
+    }
+
+    private List<Registration> announce(String[] tokens) {
+        int peerID = Integer.parseInt(tokens[1]);
+        Registration registration = registrations.computeIfAbsent(peerID,
+                id -> new Registration(id, tokens[2], Integer.parseInt(tokens[3])));
+        registration.numPiecesHeld = Integer.parseInt(tokens[4]);
+        registration.numPieces = Integer.parseInt(tokens[5]);
+        registration.lastAnnounce = System.currentTimeMillis();
+        int numWant = Integer.parseInt(tokens[6]);
+
+        // Forget peers that stopped announcing, they have most likely left the swarm
+        long now = System.currentTimeMillis();
+        registrations.values().removeIf(other -> now - other.lastAnnounce > expiryMillis);
+
+        System.out.println(String.format("Tracker : peer %d announced %d/%d pieces, %d peers registered",
+                peerID, registration.numPiecesHeld, registration.numPieces, registrations.size()));
+
+        List<Registration> others = new ArrayList<>(registrations.values());
+        others.removeIf(other -> other.peerID == peerID);
+        Collections.shuffle(others);
+        return others.subList(0, Math.min(numWant, others.size()));
+    }
+}
@@ -0,0 +1,68 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// Talks to the Tracker process on behalf of a peer, see Tracker for the protocol
+public class TrackerClient {
+    private final Peer peer;
+    private final String hostname;
+    private final int port;
+    private final int numWant;
+
+    public TrackerClient(Peer peer, String address, int numWant) {
+        this.peer = peer;
+        String[] parts = address.split(":");
+        this.hostname = parts[0];
+        this.port = Integer.parseInt(parts[1]);
+        this.numWant = numWant;
+    }
+
+    // Reports this peer's progress and returns the peers the tracker handed back, each paired with whether it is complete
+    public List<MessageManager.Pair<Peer.PeerInfo, Boolean>> announce() {
+        List<MessageManager.Pair<Peer.PeerInfo, Boolean>> peers = new ArrayList<>();
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(hostname, port), 2000);
+            socket.setSoTimeout(5000);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true, StandardCharsets.UTF_8);
+
+            Peer.PeerInfo self = peer.getPeerInfo();
+            out.println(String.format("ANNOUNCE %d %s %d %d %d %d", self.getPeerID(), self.getHostname(), self.getPort(),
+                    peer.getBitmap().getNumPiecesHeld(), peer.getNumPieces(), numWant));
+
+            String line;
+            while ((line = in.readLine()) != null && !line.equals("END")) {
+                String[] tokens = line.split(" ");
+                Peer.PeerInfo info = new Peer.PeerInfo();
+                info.setPeerID(Integer.parseInt(tokens[1]));
+                info.setHostname(tokens[2]);
+                info.setPort(Integer.parseInt(tokens[3]));
+                peers.add(new MessageManager.Pair<>(info, tokens[4].equals("1")));
+            }
+        } catch (IOException e) {
+            System.out.println("Could not reach tracker " + hostname + ":" + port + ": " + e.getMessage());
+        }
+        return peers;
+    }
+
+    // Lets the tracker forget this peer right away instead of waiting for it to expire
+    public void leave() {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(hostname, port), 2000);
+            socket.setSoTimeout(5000);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true, StandardCharsets.UTF_8);
+
+            out.println("LEAVE " + peer.getPeerInfo().getPeerID());
+            in.readLine();
+        } catch (IOException e) {
+            System.out.println("Could not reach tracker " + hostname + ":" + port + ": " + e.getMessage());
+        }
+    }
+}
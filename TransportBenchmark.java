@@ -0,0 +1,132 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+ * Compares the TCP loopback and Unix domain socket transports between two endpoints on this machine, using the same
+ * Connection streams and message framing the peers use.
+ *
+ * Usage: java TransportBenchmark [<megabytes> <pieceSize> <roundTrips>]
+ *
+ * Throughput streams PIECE-sized frames one way and waits for an acknowledgement. Latency sends HAVE-sized frames back
+ * and forth, which is what a peer does for control messages.
+ */
+public class TransportBenchmark {
+    private static final int PORT = 7999;
+
+    public static void main(String[] args) throws Exception {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        int pieceSize = args.length > 1 ? Integer.parseInt(args[1]) : 16384;
+        int roundTrips = args.length > 2 ? Integer.parseInt(args[2]) : 20000;
+        int numFrames = (int) ((long) megabytes * 1024 * 1024 / pieceSize);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            for (boolean unixDomain : new boolean[]{false, true}) {
+                // Run each transport twice and report the second run, the first one warms up the JIT
+                run(executor, unixDomain, numFrames, pieceSize, roundTrips, false);
+                run(executor, unixDomain, numFrames, pieceSize, roundTrips, true);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void run(ExecutorService executor, boolean unixDomain, int numFrames, int pieceSize, int roundTrips,
+                            boolean report) throws Exception {
+        Path path = Connection.unixDomainPath(System.getProperty("java.io.tmpdir"), PORT);
+        ServerSocketChannel listener;
+        if (unixDomain) {
+            Files.deleteIfExists(path);
+            listener = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+            listener.bind(UnixDomainSocketAddress.of(path));
+        } else {
+            listener = ServerSocketChannel.open();
+            listener.bind(new InetSocketAddress("localhost", PORT));
+        }
+
+        try (listener) {
+            Future<?> server = executor.submit(() -> {
+                serve(new Connection(listener.accept(), unixDomain), numFrames, roundTrips);
+                return null;
+            });
+            Connection client = unixDomain ? Connection.openUnixDomain(path) : Connection.openTcp("localhost", PORT, 2000);
+            try {
+                DataOutputStream out = client.getOutputStream();
+                DataInputStream in = new DataInputStream(client.getInputStream());
+
+                byte[] piece = new byte[pieceSize];
+                long start = System.nanoTime();
+                for (int i = 0; i < numFrames; i++) {
+                    writeFrame(out, MessageManager.MessageType.PIECE, piece);
+                }
+                readFrame(in);
+                double throughputSeconds = (System.nanoTime() - start) / 1e9;
+
+                byte[] have = new byte[4];
+                start = System.nanoTime();
+                for (int i = 0; i < roundTrips; i++) {
+                    writeFrame(out, MessageManager.MessageType.HAVE, have);
+                    readFrame(in);
+                }
+                double latencyMicros = (System.nanoTime() - start) / 1e3 / roundTrips;
+
+                server.get();
+                if (report) {
+                    double megabytes = (double) numFrames * pieceSize / (1024 * 1024);
+                    System.out.println(String.format("%-12s throughput %8.1f MB/s   round trip %6.1f us",
+                            unixDomain ? "Unix domain" : "TCP loopback", megabytes / throughputSeconds, latencyMicros));
+                }
+            } finally {
+                client.close();
+            }
+        } finally {
+            if (unixDomain) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    private static void serve(Connection connection, int numFrames, int roundTrips) throws IOException {
+        try {
+            DataOutputStream out = connection.getOutputStream();
+            DataInputStream in = new DataInputStream(connection.getInputStream());
+            for (int i = 0; i < numFrames; i++) {
+                readFrame(in);
+            }
+            writeFrame(out, MessageManager.MessageType.HAVE, new byte[4]);
+            for (int i = 0; i < roundTrips; i++) {
+                writeFrame(out, MessageManager.MessageType.HAVE, readFrame(in));
+            }
+        } finally {
+            connection.close();
+        }
+    }
+
+    // Same framing as MessageManager: 4-byte length including the type byte, the type, then the payload, written at once
+    private static void writeFrame(DataOutputStream out, MessageManager.MessageType type, byte[] payload) throws IOException {
+        out.write(ByteBuffer.allocate(4 + 1 + payload.length)
+                .putInt(payload.length + 1)
+                .put((byte) type.getValue())
+                .put(payload)
+                .array());
+    }
+
+    private static byte[] readFrame(DataInputStream in) throws IOException {
+        int length = in.readInt() - 1;
+        in.readByte();
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return payload;
+    }
+}
@@ -0,0 +1,307 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/*
+ * Decides in which order requested pieces are uploaded, so the uplink is shared the way the choke policy intends
+ * instead of by whichever neighbor's requests reach the disk stage first. Requests wait in a queue per neighbor and are
+ * handed to the disk stage in deficit round-robin order: each turn a neighbor earns its weight in pieces worth of bytes,
+ * PreferredUploadWeight for a preferred neighbor, OptimisticUploadWeight for the optimistically unchoked one and 1 for
+ * anyone else, and spends them on its queued pieces. Only UploadWindow pieces may be between the disk and the sockets at
+ * once, so the order in which they are dispatched is the order in which the uplink carries them. No neighbor may hold more
+ * than half of the window, and a neighbor whose pieces have not moved for STALL_TIMEOUT_MS gives its share back, so one
+ * that stops reading cannot keep everyone else waiting. Requests of a neighbor that was choked in the meantime are dropped when they are dispatched rather than served. The bytes each neighbor was
+ * sent are logged every unchoking interval, together with how much went to preferred, optimistic and other neighbors at
+ * the time it was written.
+ */
+public class UploadScheduler implements Runnable {
+    private static final int PREFERRED = 0;
+    private static final int OPTIMISTIC = 1;
+    private static final int OTHER = 2;
+    // How long dispatched pieces may sit unwritten before their neighbor's share of the window is handed back
+    private static final long STALL_TIMEOUT_MS = 5000;
+
+    private final Peer peer;
+    private final int preferredWeight;
+    private final int optimisticWeight;
+    private final int window;
+    // Pieces one neighbor may have in flight at once, 0 when the window is unlimited
+    private final int connectionWindow;
+    // One per connection, so whatever is reported late for a connection that is gone never reaches its replacement
+    private final Map<Connection, Upstream> upstreams = new HashMap<>();
+    // Connections with queued requests, in round-robin order
+    private final Deque<Upstream> active = new ArrayDeque<>();
+    // Pieces dispatched and not yet written to a socket or dropped
+    private int inFlight = 0;
+    private long intervalStart = System.nanoTime();
+    // Bytes written since the last report to preferred, optimistic and other neighbors
+    private final long[] bytesByStatus = new long[3];
+
+    private static class Upstream {
+        final int peerID;
+        final Deque<Request> queue = new ArrayDeque<>();
+        long deficit = 0;
+        int inFlight = 0;
+        // Pieces of inFlight that still count against the window, which is all of them unless the neighbor stalled
+        int holding = 0;
+        // When the neighbor last had a piece written or started with none in flight
+        long progressAt = System.nanoTime();
+        long bytesSent = 0;
+
+        Upstream(int peerID) {
+            this.peerID = peerID;
+        }
+    }
+
+    private record Request(int piece, Runnable upload) {
+    }
+
+    // A window of 0 dispatches requests as soon as they arrive
+    public UploadScheduler(Peer peer, int preferredWeight, int optimisticWeight, int window) {
+        this.peer = peer;
+        this.preferredWeight = Math.max(1, preferredWeight);
+        this.optimisticWeight = Math.max(1, optimisticWeight);
+        this.window = window;
+        this.connectionWindow = window > 0 ? Math.max(1, window / 2) : 0;
+    }
+
+    // Returns the listener for the connection's outbound queue, which reports written pieces and gives back the
+    // connection's share of the window once the queue is closed
+    public synchronized OutboundQueue.BulkListener onConnected(int peerID, Connection connection) {
+        upstreams.put(connection, new Upstream(peerID));
+        return new OutboundQueue.BulkListener() {
+            @Override
+            public void onBulkWritten(int scheduledFrames, long bytes) {
+                onWritten(connection, scheduledFrames, bytes);
+            }
+
+            @Override
+            public void onClosed() {
+                onDisconnected(connection);
+            }
+        };
+    }
+
+    // Queues the upload of a piece requested on the connection. The upload runs on the disk stage once it is the
+    // neighbor's turn. Returns false if the connection is already gone.
+    public synchronized boolean submit(Connection connection, int piece, Runnable upload) {
+        Upstream upstream = upstreams.get(connection);
+        if (upstream == null) {
+            return false;
+        }
+        if (upstream.queue.isEmpty()) {
+            active.add(upstream);
+            upstream.deficit = quantum(upstream.peerID);
+        }
+        upstream.queue.add(new Request(piece, upload));
+        notifyAll();
+        return true;
+    }
+
+    // Drops one request for the piece that was not dispatched yet. Returns false if none is left waiting.
+    public synchronized boolean cancel(Connection connection, int piece) {
+        Upstream upstream = upstreams.get(connection);
+        if (upstream == null) {
+            return false;
+        }
+        Request cancelled = null;
+        for (Request request : upstream.queue) {
+            if (request.piece() == piece) {
+                cancelled = request;
+                break;
+            }
+        }
+        if (cancelled == null) {
+            return false;
+        }
+        upstream.queue.remove(cancelled);
+        if (upstream.queue.isEmpty()) {
+            active.remove(upstream);
+            upstream.deficit = 0;
+        }
+        return true;
+    }
+
+    // A dispatched upload that was not sent after all
+    public synchronized void onSkipped(Connection connection) {
+        finish(upstreams.get(connection), 1);
+    }
+
+    // Called by the connection's writer once PIECE frames are in the socket, dispatched ones or not
+    public synchronized void onWritten(Connection connection, int dispatchedFrames, long bytes) {
+        Upstream upstream = upstreams.get(connection);
+        if (upstream == null) {
+            return;
+        }
+        upstream.bytesSent += bytes;
+        finish(upstream, dispatchedFrames);
+        bytesByStatus[status(upstream.peerID)] += bytes;
+    }
+
+    // Whatever the connection had queued or in flight is gone with it
+    public synchronized void onDisconnected(Connection connection) {
+        Upstream upstream = upstreams.remove(connection);
+        if (upstream != null) {
+            active.remove(upstream);
+            inFlight -= upstream.holding;
+            notifyAll();
+        }
+    }
+
+    // Logs how the uplink was shared since the last call, if anything was sent
+    public void reportShares() {
+        Map<Integer, Long> sent = new HashMap<>();
+        long[] byStatus;
+        long elapsed;
+        synchronized (this) {
+            for (Upstream upstream : upstreams.values()) {
+                if (upstream.bytesSent > 0) {
+                    sent.merge(upstream.peerID, upstream.bytesSent, Long::sum);
+                    upstream.bytesSent = 0;
+                }
+            }
+            byStatus = bytesByStatus.clone();
+            Arrays.fill(bytesByStatus, 0);
+            long now = System.nanoTime();
+            elapsed = now - intervalStart;
+            intervalStart = now;
+        }
+        long total = Arrays.stream(byStatus).sum();
+        if (total == 0) {
+            return;
+        }
+        List<String> shares = new ArrayList<>();
+        sent.entrySet().stream()
+                .sorted(Map.Entry.<Integer, Long>comparingByValue().reversed())
+                .forEach(entry -> shares.add(entry.getKey() + " " + percent(entry.getValue(), total)));
+        peer.getLogger().logUploadShares(total, elapsed, percent(byStatus[PREFERRED], total),
+                percent(byStatus[OPTIMISTIC], total), percent(byStatus[OTHER], total), String.join(", ", shares));
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted() && peer.getServerSocket().isOpen()) {
+                int peerID;
+                Runnable upload;
+                synchronized (this) {
+                    while (!canDispatch()) {
+                        wait(window > 0 ? STALL_TIMEOUT_MS / 2 : 0);
+                        releaseStalled();
+                    }
+                    Upstream upstream = active.peek();
+                    peerID = upstream.peerID;
+                    if (connectionWindow > 0 && upstream.inFlight >= connectionWindow) {
+                        // Its share is in flight, so the others go first. It keeps its deficit for its next turn.
+                        active.add(active.poll());
+                        continue;
+                    }
+                    Request request = upstream.queue.peek();
+                    int cost = peer.getFileManager().getPieceLength(request.piece());
+                    if (upstream.deficit < cost) {
+                        // The neighbor's turn is over. What it did not spend carries over to its next turn.
+                        active.add(active.poll());
+                        upstream.deficit += quantum(peerID);
+                        continue;
+                    }
+                    upstream.deficit -= cost;
+                    upstream.queue.poll();
+                    if (upstream.inFlight == 0) {
+                        upstream.progressAt = System.nanoTime();
+                    }
+                    upstream.inFlight++;
+                    upstream.holding++;
+                    inFlight++;
+                    if (upstream.queue.isEmpty()) {
+                        active.poll();
+                        upstream.deficit = 0;
+                    }
+                    upload = request.upload();
+                }
+                // Outside the lock, since a full disk stage blocks until it catches up
+                peer.getDiskStage().submit(peerID, upload);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void finish(Upstream upstream, int frames) {
+        if (upstream == null) {
+            return;
+        }
+        upstream.inFlight = Math.max(0, upstream.inFlight - frames);
+        // Pieces already given back when the neighbor stalled are not given back twice
+        int holding = Math.min(upstream.holding, upstream.inFlight);
+        inFlight -= upstream.holding - holding;
+        upstream.holding = holding;
+        upstream.progressAt = System.nanoTime();
+        notifyAll();
+    }
+
+    // Whether the window has room and some neighbor with queued requests has not used up its share of it
+    private boolean canDispatch() {
+        if (active.isEmpty() || (window > 0 && inFlight >= window)) {
+            return false;
+        }
+        if (connectionWindow == 0) {
+            return true;
+        }
+        for (Upstream upstream : active) {
+            if (upstream.inFlight < connectionWindow) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Hands back the window share of neighbors that had none of their pieces written for STALL_TIMEOUT_MS. Their pieces
+    // still count against their own share, so they get no more until those are written.
+    private void releaseStalled() {
+        long now = System.nanoTime();
+        for (Upstream upstream : upstreams.values()) {
+            if (upstream.holding > 0 && now - upstream.progressAt >= STALL_TIMEOUT_MS * 1_000_000) {
+                System.out.println("Peer " + upstream.peerID + " took no pieces for " + STALL_TIMEOUT_MS
+                        + " ms, its share of the upload window is released");
+                inFlight -= upstream.holding;
+                upstream.holding = 0;
+                notifyAll();
+            }
+        }
+    }
+
+    // The bytes a neighbor may be sent per turn
+    private long quantum(int peerID) {
+        return (long) weight(peerID) * peer.getPieceSize();
+    }
+
+    private int weight(int peerID) {
+        switch (status(peerID)) {
+            case PREFERRED:
+                return preferredWeight;
+            case OPTIMISTIC:
+                return optimisticWeight;
+            default:
+                return 1;
+        }
+    }
+
+    private int status(int peerID) {
+        if (peer.getNeighbors().isPreferredNeighbor(peerID)) {
+            return PREFERRED;
+        }
+        if (Objects.equals(peer.getNeighbors().getOptimisticNeighbor(), peerID)) {
+            return OPTIMISTIC;
+        }
+        return OTHER;
+    }
+
+    private static String percent(long bytes, long total) {
+        return Math.round(100.0 * bytes / total) + "%";
+    }
+}
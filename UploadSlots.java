@@ -0,0 +1,96 @@
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Adapts the number of preferred neighbors to the peer's upload capacity. Every unchoke interval it measures how many
+ * bytes went out and how much of the interval the writers of the unchoked neighbors spent inside socket writes. Writers
+ * that mostly wait for data mean the uplink has room for another slot; writers that are always writing mean the uplink
+ * is full, and if each slot then gets less than a piece per second, a slot is taken away so the rest finish pieces
+ * sooner. A change that did not pay off, i.e. a slot added without more throughput or a slot removed with clearly less,
+ * is undone, and no slot is added for a few intervals after that, not even to undo a removal.
+ */
+public class UploadSlots {
+    // Average share of the interval the unchoked neighbors' writers spent writing
+    private static final double IDLE_UTILIZATION = 0.5;
+    private static final double SATURATED_UTILIZATION = 0.9;
+    // A change of less than this share of the throughput counts as no change
+    private static final double MIN_GAIN = 0.1;
+    private static final int HOLD_INTERVALS = 3;
+
+    private final Peer peer;
+    private final int minSlots;
+    private final int maxSlots;
+    private int slots;
+    private int lastChange = 0;
+    private int holdIntervals = 0;
+    private long lastTime = System.nanoTime();
+    private long lastBytes = 0;
+    private double throughput = 0;
+    private double utilization = 0;
+    private final Map<Integer, Long> lastWriteNanos = new HashMap<>();
+
+    public UploadSlots(Peer peer, int minSlots, int maxSlots, int initialSlots) {
+        this.peer = peer;
+        this.minSlots = Math.max(1, minSlots);
+        this.maxSlots = Math.max(this.minSlots, maxSlots);
+        this.slots = Math.max(this.minSlots, Math.min(this.maxSlots, initialSlots));
+    }
+
+    // Measures the interval that just ended and returns the number of preferred neighbors for the next one
+    public synchronized int update(Collection<Integer> unchoked, int numInterested) {
+        long now = System.nanoTime();
+        double seconds = Math.max(1e-9, (now - lastTime) / 1e9);
+        long bytes = peer.getMessageManager().getPieceWireBytesSent();
+        double previousThroughput = throughput;
+        throughput = (bytes - lastBytes) / seconds;
+
+        double writing = 0;
+        Map<Integer, Long> writeNanos = new HashMap<>();
+        for (Integer peerID : unchoked) {
+            long nanos = peer.getMessageManager().getWriteNanos(peerID);
+            writeNanos.put(peerID, nanos);
+            writing += Math.min(1.0, (nanos - lastWriteNanos.getOrDefault(peerID, nanos)) / 1e9 / seconds);
+        }
+        utilization = unchoked.isEmpty() ? 0 : writing / unchoked.size();
+        lastWriteNanos.clear();
+        lastWriteNanos.putAll(writeNanos);
+        lastTime = now;
+        lastBytes = bytes;
+
+        int previous = slots;
+        String reason = null;
+        if (holdIntervals > 0) {
+            holdIntervals--;
+        }
+        if (numInterested == 0) {
+            // Nobody wants anything, so the measurements say nothing about the uplink
+            lastChange = 0;
+            return slots;
+        }
+        if (lastChange > 0 && throughput < previousThroughput * (1 + MIN_GAIN)) {
+            slots--;
+            holdIntervals = HOLD_INTERVALS;
+            reason = "the last slot added no throughput";
+        } else if (lastChange < 0 && throughput < previousThroughput * (1 - MIN_GAIN) && holdIntervals == 0) {
+            slots++;
+            holdIntervals = HOLD_INTERVALS;
+            reason = "throughput fell after removing a slot";
+        } else if (utilization < IDLE_UTILIZATION && numInterested > slots && holdIntervals == 0) {
+            slots++;
+            reason = "the uplink has room";
+        } else if (utilization >= SATURATED_UTILIZATION && throughput / slots < peer.getPieceSize()) {
+            slots--;
+            reason = "the uplink is full and each slot gets less than a piece per second";
+        }
+        slots = Math.max(minSlots, Math.min(maxSlots, slots));
+        lastChange = slots - previous;
+
+        peer.getTrace().record(TraceRecorder.Event.UPLOAD_SLOTS, -1, slots,
+                (int) Math.min(Integer.MAX_VALUE, throughput));
+        if (lastChange != 0) {
+            peer.getLogger().logUploadSlots(previous, slots, throughput, utilization, reason);
+        }
+        return slots;
+    }
+}
@@ -0,0 +1,112 @@
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * An HTTP origin serving the file, used as one more source of pieces for when the seeds are slow or overloaded. A
+ * leecher with OriginURL set fetches missing pieces from it with range requests, one at a time and at no more than
+ * OriginRate. The piece picker chooses them rarest-first, as for a neighbor that has every piece, so the origin mostly
+ * supplies the pieces the fewest neighbors have, and in endgame a piece a neighbor still owes. The piece in flight counts
+ * as requested under ORIGIN_ID, so neighbors are not asked for it at the same time. Pieces from the origin are stored
+ * and announced like any other, so the swarm shares them on.
+ */
+public class WebSeed implements Runnable {
+    // Stands in for a neighbor ID wherever a piece's source is recorded
+    public static final int ORIGIN_ID = -1;
+    private static final long RETRY_MS = 1000;
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(30);
+
+    private final Peer peer;
+    private final URI uri;
+    private final long bytesPerSecond;
+    private final HttpClient client = HttpClient.newBuilder().connectTimeout(REQUEST_TIMEOUT).build();
+    // The origin has the file's own pieces, not the repair pieces of erasure coding
+    private final Bitmap originBitmap;
+    private final AtomicLong piecesFetched = new AtomicLong();
+    private final AtomicLong bytesFetched = new AtomicLong();
+
+    // A rate of 0 fetches as fast as the origin answers
+    public WebSeed(Peer peer, String url, int kilobytesPerSecond) {
+        this.peer = peer;
+        this.uri = URI.create(url);
+        this.bytesPerSecond = kilobytesPerSecond * 1024L;
+        this.originBitmap = new Bitmap(peer.getNumPieces(), peer.getNumSourcePieces(), false);
+        for (int piece = 0; piece < peer.getNumSourcePieces(); piece++) {
+            originBitmap.markPieceAsReceived(piece);
+        }
+        peer.getNeighbors().addRequestSource(ORIGIN_ID);
+    }
+
+    @Override
+    public void run() {
+        long nextFetch = System.nanoTime();
+        while (!Thread.currentThread().isInterrupted() && peer.getServerSocket().isOpen() && !peer.getBitmap().hasAllPieces()) {
+            try {
+                // Waits out the time the last piece took at OriginRate
+                long wait = nextFetch - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                int piece = peer.getPiecePicker().pickOriginPiece(originBitmap);
+                if (piece == -1) {
+                    TimeUnit.MILLISECONDS.sleep(RETRY_MS);
+                    continue;
+                }
+                peer.getNeighbors().addRequestedPiece(ORIGIN_ID, piece);
+                byte[] data;
+                try {
+                    data = fetch(piece);
+                } catch (IOException e) {
+                    peer.getNeighbors().removeRequestedPiece(ORIGIN_ID, piece);
+                    System.out.println("Could not fetch piece " + piece + " from the origin: " + e.getMessage());
+                    nextFetch = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RETRY_MS);
+                    continue;
+                }
+                if (bytesPerSecond > 0) {
+                    nextFetch = Math.max(nextFetch, System.nanoTime()) + TimeUnit.SECONDS.toNanos(data.length) / bytesPerSecond;
+                }
+                piecesFetched.incrementAndGet();
+                bytesFetched.addAndGet(data.length);
+                peer.getTrace().record(TraceRecorder.Event.PIECE_RECEIVED, ORIGIN_ID, piece, data.length);
+                // The piece stays requested until it is written, like a piece from a neighbor
+                peer.getDiskStage().submit(ORIGIN_ID, () -> {
+                    PrimaryConnector.storePiece(peer, ORIGIN_ID, piece, ByteBuffer.wrap(data));
+                    PrimaryConnector.stopIfSwarmComplete(peer);
+                });
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    public void reportStatistics() {
+        if (piecesFetched.get() > 0) {
+            peer.getLogger().logOriginStatistics(piecesFetched.get(), bytesFetched.get());
+        }
+    }
+
+    private byte[] fetch(int piece) throws IOException, InterruptedException {
+        long offset = (long) piece * peer.getPieceSize();
+        int length = peer.getFileManager().getPieceLength(piece);
+        HttpRequest request = HttpRequest.newBuilder(uri)
+                .header("Range", "bytes=" + offset + "-" + (offset + length - 1))
+                .timeout(REQUEST_TIMEOUT)
+                .GET()
+                .build();
+        HttpResponse<byte[]> response = client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+        if (response.statusCode() != 206) {
+            throw new IOException("HTTP status " + response.statusCode() + " instead of 206 Partial Content");
+        }
+        if (response.body().length != length) {
+            throw new IOException(String.format("Got %d bytes instead of %d", response.body().length, length));
+        }
+        return response.body();
+    }
+}
@@ -0,0 +1,52 @@
+#!/bin/bash
+# Distributes a sparse synthetic file larger than 2 GB from one seed to two leechers on this host and checks that the
+# leechers end up with the same bytes. Usage: ./largefile_test.sh [size, default 10G] [work directory]
+# Needs about twice the file size in free disk space, since the leechers write every piece.
+
+SIZE=${1:-10G}
+WORK=${2:-/tmp/p2p_largefile}
+PROJECT_DIR="$(cd "$(dirname "$0")" && pwd)"
+
+rm -rf "$WORK" && mkdir -p "$WORK/classes" || exit 1
+javac -encoding UTF-8 -d "$WORK/classes" "$PROJECT_DIR"/*.java || exit 1
+cd "$WORK" || exit 1
+
+mkdir -p peer_3001 peer_3002 peer_3003
+truncate -s "$SIZE" peer_3001/bigfile
+BYTES=$(stat -c %s peer_3001/bigfile)
+# Some random data at the start, in the middle, past the 2 GB and 4 GB marks and in the last piece, so offsets that
+# wrap at 32 bits show up as mismatches
+for offset in 0 $((BYTES / 2)) $((2 * 1024 * 1024 * 1024 + 12345)) $((4 * 1024 * 1024 * 1024 + 777)) $((BYTES - 4096)); do
+  if [ "$offset" -lt "$BYTES" ]; then
+    head -c 4096 /dev/urandom | dd of=peer_3001/bigfile bs=1 seek="$offset" conv=notrunc status=none
+  fi
+done
+
+cat > Common.cfg <<EOF
+NumberOfPreferredNeighbors 2
+UnchokingInterval 1
+OptimisticUnchokingInterval 2
+FileName bigfile
+FileSize $BYTES
+PieceSize 1048576
+EOF
+printf "3001 localhost 7301 1\n3002 localhost 7302 0\n3003 localhost 7303 0" > PeerInfo.cfg
+
+start=$(date +%s)
+for id in 3001 3002 3003; do
+  java -cp classes PeerProcess $id > out_$id.txt 2>&1 &
+  sleep 0.5
+done
+wait
+echo "Distributed $BYTES bytes in $(( $(date +%s) - start )) s"
+
+status=0
+for id in 3002 3003; do
+  if cmp -s peer_3001/bigfile peer_$id/bigfile; then
+    echo "$id OK"
+  else
+    echo "$id FAIL"
+    status=1
+  fi
+done
+exit $status
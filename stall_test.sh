@@ -0,0 +1,75 @@
+#!/bin/bash
+# Checks that a neighbor that stops reading cannot stall uploads to everyone else. A seed serves two leechers and a fake
+# neighbor that handshakes, requests every piece and then never reads from its socket. Passes if both leechers still
+# get the whole file in time. Usage: ./stall_test.sh [seconds to wait, default 60] [work directory]
+
+DEADLINE=${1:-60}
+WORK=${2:-/tmp/p2p_stall}
+PROJECT_DIR="$(cd "$(dirname "$0")" && pwd)"
+PIECES=64
+
+rm -rf "$WORK" && mkdir -p "$WORK/classes" || exit 1
+javac -encoding UTF-8 -d "$WORK/classes" "$PROJECT_DIR"/*.java || exit 1
+cd "$WORK" || exit 1
+
+mkdir -p peer_3101 peer_3102 peer_3103
+head -c $((PIECES * 1048576)) /dev/urandom > peer_3101/stallfile
+cat > Common.cfg <<EOF
+NumberOfPreferredNeighbors 2
+UnchokingInterval 1
+OptimisticUnchokingInterval 2
+FileName stallfile
+FileSize $((PIECES * 1048576))
+PieceSize 1048576
+EOF
+# The fake neighbor comes last, so nobody dials it and it only connects to the seed
+printf "3101 localhost 7401 1\n3102 localhost 7402 0\n3103 localhost 7403 0\n3104 localhost 7404 0" > PeerInfo.cfg
+
+# Big-endian 4 byte integer as printf escapes
+int32() {
+  printf '\\x%02x\\x%02x\\x%02x\\x%02x' $(( ($1 >> 24) & 255 )) $(( ($1 >> 16) & 255 )) $(( ($1 >> 8) & 255 )) $(( $1 & 255 ))
+}
+
+java -cp classes PeerProcess 3101 > out_3101.txt 2>&1 &
+sleep 1
+(
+  exec 3<>/dev/tcp/127.0.0.1/7401 || exit 1
+  printf "P2PFILESHARINGPROJ\x00\x00\x00\x00\x00\x00\x00\x00\x00\x00$(int32 3104)" >&3
+  printf "$(int32 $(( 1 + (PIECES + 7) / 8 )))\x05" >&3
+  head -c $(( (PIECES + 7) / 8 )) /dev/zero >&3
+  printf "$(int32 1)\x02" >&3
+  for ((piece = 0; piece < PIECES; piece++)); do
+    printf "$(int32 5)\x06$(int32 $piece)" >&3
+  done
+  sleep $((DEADLINE + 30))
+) &
+FAKE=$!
+sleep 2
+for id in 3102 3103; do
+  java -cp classes PeerProcess $id > out_$id.txt 2>&1 &
+done
+
+status=1
+for ((second = 0; second < DEADLINE; second++)); do
+  if grep -q "downloaded the complete file" log_peer_3102.log 2>/dev/null \
+      && grep -q "downloaded the complete file" log_peer_3103.log 2>/dev/null; then
+    status=0
+    break
+  fi
+  sleep 1
+done
+# The swarm never completes with a neighbor that never reads, so the peers are stopped here
+kill $FAKE 2>/dev/null
+pkill -f "[P]eerProcess 310[123]"
+wait 2>/dev/null
+
+for id in 3102 3103; do
+  if cmp -s peer_3101/stallfile peer_$id/stallfile; then
+    echo "$id OK"
+  else
+    echo "$id FAIL"
+    status=1
+  fi
+done
+[ $status -eq 0 ] && echo "Leechers finished after $second s" || echo "Leechers did not finish within $DEADLINE s"
+exit $status